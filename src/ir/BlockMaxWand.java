@@ -0,0 +1,231 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+
+/**
+ *   Finds the k documents with the highest tf-idf scores for a set of
+ *   query terms, with the Block-Max WAND algorithm, without scoring the
+ *   documents that cannot make the top k.
+ *
+ *   The score of a document is the sum of @code{weight * tf} over the
+ *   query terms (the weight holds the idf of the query term and of the
+ *   document weight), divided by the norm (or the length) of the
+ *   document, as in exhaustive ranking. The cursors of the terms are kept sorted by their docIDs. The
+ *   pivot is the first document at which the upper bounds of the terms so
+ *   far add up to more than the lowest score in the top k (WAND). The
+ *   bounds of the blocks that hold the pivot are then added up, and if
+ *   they are too low, the cursors jump past the end of the first of these
+ *   blocks (Block-Max WAND). Only the remaining pivots are scored.
+ *
+ *   The scores are added up in the order of the query terms, as in
+ *   exhaustive ranking, so they are the same to the last bit. Documents
+ *   with equal scores are ranked by docID.
+ */
+public class BlockMaxWand {
+
+    /**
+     *  The bounds are rounded to floats, and the scores are added up in
+     *  doubles, so a document is only skipped if its bound is lower than
+     *  the top k by more than this fraction.
+     */
+    static final double SLACK = 1e-9;
+
+    final PostingsCursor[] cursors;
+
+    final ScoreBounds[] bounds;
+
+    final double[] weights;
+
+    /** The upper bound of the score (before the division by the length) of every term. */
+    final double[] upper;
+
+    /** The current block of every term. */
+    final int[] block;
+
+    /** The current docID of the cursor of every term. */
+    final int[] doc;
+
+    /** The terms, by the current docIDs of their cursors. */
+    final int[] order;
+
+    /** The number of terms in @code{order} whose cursors are not exhausted. */
+    int live;
+
+    final DocTable docs;
+
+    /** The top k so far. */
+    final TopDocs top;
+
+    /** The number of documents scored. */
+    int scored = 0;
+
+
+    /**
+     *  @param cursors The cursors of the query terms, before the first document.
+     *  @param bounds  The score bounds of the query terms.
+     *  @param weights The (non-negative) weights of the query terms.
+     */
+    BlockMaxWand( PostingsCursor[] cursors, ScoreBounds[] bounds, double[] weights, DocTable docs, int k ) {
+        this.cursors = cursors;
+        this.bounds = bounds;
+        this.weights = weights;
+        this.docs = docs;
+        int m = cursors.length;
+        upper = new double[m];
+        block = new int[m];
+        doc = new int[m];
+        order = new int[m];
+        for ( int i=0; i<m; i++ ) {
+            upper[i] = weights[i] * bounds[i].max;
+            order[i] = i;
+            doc[i] = cursors[i].nextDoc();
+        }
+        live = m;
+        sort( m );
+        top = new TopDocs( k );
+    }
+
+
+    /**
+     *  Returns the top k documents, by decreasing score and then by
+     *  increasing docID.
+     */
+    public static PostingsList topK( PostingsCursor[] cursors, ScoreBounds[] bounds, double[] weights, DocTable docs, int k ) {
+        return new BlockMaxWand( cursors, bounds, weights, docs, k ).run();
+    }
+
+
+    PostingsList run() {
+        int m = cursors.length;
+        int[] pivots = new int[m];
+        while ( live > 0 ) {
+            double threshold = top.threshold();
+
+            // Find the pivot term
+            double sum = 0;
+            int p = -1;
+            for ( int j=0; j<live; j++ ) {
+                sum += upper[order[j]];
+                if ( beats( sum, threshold )) {
+                    p = j;
+                    break;
+                }
+            }
+            if ( p < 0 ) {
+                break;
+            }
+            int pivot = doc[order[p]];
+            while ( p + 1 < live && doc[order[p+1]] == pivot ) {
+                p++;
+            }
+
+            // Add up the bounds of the blocks that hold the pivot
+            double blockSum = 0;
+            for ( int j=0; j<=p; j++ ) {
+                int t = order[j];
+                block[t] = bounds[t].block( block[t], pivot );
+                if ( block[t] < bounds[t].blocks ) {
+                    blockSum += weights[t] * bounds[t].blockMax( block[t] );
+                }
+            }
+
+            if ( !beats( blockSum, threshold )) {
+                // No document before the end of the first of these blocks can make it
+                long next = p + 1 < live ? doc[order[p+1]] : PostingsCursor.NO_MORE_DOCS;
+                for ( int j=0; j<=p; j++ ) {
+                    int t = order[j];
+                    if ( block[t] < bounds[t].blocks ) {
+                        next = Math.min( next, (long)bounds[t].blockLast( block[t] ) + 1 );
+                    }
+                }
+                moveTo( p, (int)Math.min( next, PostingsCursor.NO_MORE_DOCS ));
+            } else if ( doc[order[0]] == pivot ) {
+                // Score the pivot, adding up the terms in query order
+                for ( int j=0; j<=p; j++ ) {
+                    pivots[j] = order[j];
+                }
+                insertionSort( pivots, p + 1 );
+                double score = 0;
+                for ( int j=0; j<=p; j++ ) {
+                    int t = pivots[j];
+                    score += weights[t] * cursors[t].freq();
+                }
+                score /= docs.normalizer( pivot );
+                scored++;
+                top.offer( pivot, score );
+                for ( int j=0; j<=p; j++ ) {
+                    int t = order[j];
+                    doc[t] = cursors[t].nextDoc();
+                }
+                sort( p + 1 );
+            } else {
+                // No document before the pivot can make it
+                int j = 0;
+                while ( doc[order[j]] < pivot ) {
+                    j++;
+                }
+                moveTo( j - 1, pivot );
+            }
+        }
+        return top.toList();
+    }
+
+
+    /** True if a bound of @code{bound} may beat the lowest score @code{threshold} in the top k. */
+    private static boolean beats( double bound, double threshold ) {
+        return bound * (1 + SLACK) > threshold;
+    }
+
+
+    /** Moves the cursors of @code{order[0..j]} to the first document at or after @code{target}. */
+    private void moveTo( int j, int target ) {
+        for ( int i=0; i<=j; i++ ) {
+            int t = order[i];
+            if ( doc[t] < target ) {
+                doc[t] = cursors[t].advance( target );
+            }
+        }
+        sort( j + 1 );
+    }
+
+
+    /**
+     *  Puts the first @code{n} terms of @code{order}, whose cursors have
+     *  moved, back in docID order among the others, and drops the terms
+     *  whose cursors are exhausted.
+     */
+    private void sort( int n ) {
+        for ( int i=n-1; i>=0; i-- ) {
+            // order[i+1..live) is sorted
+            int t = order[i];
+            int d = doc[t];
+            int j = i;
+            while ( j + 1 < live && doc[order[j+1]] < d ) {
+                order[j] = order[j+1];
+                j++;
+            }
+            order[j] = t;
+        }
+        while ( live > 0 && doc[order[live-1]] == PostingsCursor.NO_MORE_DOCS ) {
+            live--;
+        }
+    }
+
+
+    private static void insertionSort( int[] a, int n ) {
+        for ( int i=1; i<n; i++ ) {
+            int x = a[i];
+            int j = i;
+            while ( j > 0 && a[j-1] > x ) {
+                a[j] = a[j-1];
+                j--;
+            }
+            a[j] = x;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *  A reusable view of a range of a char array, used to pass tokens
+ *  around without creating a String for each of them.
+ */
+public class CharSlice implements CharSequence {
+
+    char[] chars;
+    int offset;
+    int length;
+
+    /** Points this view to @code{chars[offset..offset+length)}. */
+    public void set( char[] chars, int offset, int length ) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt( int index ) {
+        return chars[offset + index];
+    }
+
+    public CharSequence subSequence( int start, int end ) {
+        return new String( chars, offset + start, end - start );
+    }
+
+    public String toString() {
+        return new String( chars, offset, length );
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *   A compressed set of docIDs, in the style of a roaring bitmap.
+ *
+ *   The docIDs are divided into chunks by their high 16 bits. A chunk with
+ *   few docIDs stores their low 16 bits as a sorted array, and a chunk with
+ *   more than @code{ARRAY_MAX} docIDs as a bitmap of 2^16 bits. Unions and
+ *   intersections work chunk by chunk, on whole 64-bit words for bitmaps.
+ *
+ *   Sets are immutable once built, so they can be cached and shared.
+ */
+public class DocBitmap {
+
+    /** A chunk with more docIDs than this is stored as a bitmap. */
+    static final int ARRAY_MAX = 4096;
+
+    /** The number of 64-bit words in a bitmap chunk. */
+    static final int WORDS = 1 << 10;
+
+    /** The high 16 bits of the docIDs in each chunk, in increasing order. */
+    private final int[] keys;
+
+    /** The chunks: a char[] of sorted low bits, or a long[] bitmap. */
+    private final Object[] chunks;
+
+    /** The number of docIDs in each chunk. */
+    private final int[] counts;
+
+
+    private DocBitmap( int[] keys, Object[] chunks, int[] counts ) {
+        this.keys = keys;
+        this.chunks = chunks;
+        this.counts = counts;
+    }
+
+
+    /**
+     *  Returns the set of docIDs in a postings list.
+     */
+    public static DocBitmap of( PostingsList postings ) {
+        return of( postings.docIDs(), postings.size() );
+    }
+
+
+    /**
+     *  Returns the set of docIDs of a cursor, which is read to the end.
+     *  Only the docIDs are read, not the positions.
+     */
+    public static DocBitmap of( PostingsCursor cursor ) {
+        int[] d = new int[Math.max( 1, cursor.size() )];
+        int n = 0;
+        for ( int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc() ) {
+            if ( n == d.length ) {
+                d = Arrays.copyOf( d, 2 * n );
+            }
+            d[n++] = docID;
+        }
+        return of( d, n );
+    }
+
+
+    /**
+     *  Returns the set of the first @code{n} docIDs in @code{d}, which are
+     *  in increasing order.
+     */
+    private static DocBitmap of( int[] d, int n ) {
+        Builder b = new Builder();
+        int i = 0;
+        while ( i < n ) {
+            int key = d[i] >>> 16;
+            int j = i;
+            while ( j < n && d[j] >>> 16 == key ) {
+                j++;
+            }
+            if ( j - i > ARRAY_MAX ) {
+                long[] bits = new long[WORDS];
+                for ( int k=i; k<j; k++ ) {
+                    int low = d[k] & 0xffff;
+                    bits[low >>> 6] |= 1L << low;
+                }
+                b.add( key, bits, j - i );
+            } else {
+                char[] values = new char[j - i];
+                for ( int k=i; k<j; k++ ) {
+                    values[k - i] = (char)d[k];
+                }
+                b.add( key, values, j - i );
+            }
+            i = j;
+        }
+        return b.build();
+    }
+
+
+    /**
+     *  Returns the union of many sets. Every chunk is accumulated in one
+     *  bitmap, so the cost is linear in the total size of the sets.
+     */
+    public static DocBitmap or( List<DocBitmap> sets ) {
+        // The keys of all sets, in order
+        int[] all = new int[0];
+        for ( DocBitmap s : sets ) {
+            all = unionKeys( all, s.keys );
+        }
+        Builder b = new Builder();
+        long[] acc = new long[WORDS];
+        int[] next = new int[sets.size()];
+        for ( int key : all ) {
+            Arrays.fill( acc, 0L );
+            for ( int i=0; i<sets.size(); i++ ) {
+                DocBitmap s = sets.get( i );
+                if ( next[i] < s.keys.length && s.keys[next[i]] == key ) {
+                    Object c = s.chunks[next[i]];
+                    if ( c instanceof long[] ) {
+                        long[] bits = (long[])c;
+                        for ( int w=0; w<WORDS; w++ ) {
+                            acc[w] |= bits[w];
+                        }
+                    } else {
+                        char[] values = (char[])c;
+                        for ( int k=0; k<s.counts[next[i]]; k++ ) {
+                            acc[values[k] >>> 6] |= 1L << values[k];
+                        }
+                    }
+                    next[i]++;
+                }
+            }
+            b.addBits( key, acc );
+        }
+        return b.build();
+    }
+
+
+    /**
+     *  Returns the intersection of this set and another one.
+     */
+    public DocBitmap and( DocBitmap other ) {
+        Builder b = new Builder();
+        int i = 0;
+        int j = 0;
+        while ( i < keys.length && j < other.keys.length ) {
+            if ( keys[i] < other.keys[j] ) {
+                i++;
+            } else if ( keys[i] > other.keys[j] ) {
+                j++;
+            } else {
+                Object c1 = chunks[i];
+                Object c2 = other.chunks[j];
+                if ( c1 instanceof long[] && c2 instanceof long[] ) {
+                    long[] bits1 = (long[])c1;
+                    long[] bits2 = (long[])c2;
+                    long[] acc = new long[WORDS];
+                    for ( int w=0; w<WORDS; w++ ) {
+                        acc[w] = bits1[w] & bits2[w];
+                    }
+                    b.addBits( keys[i], acc );
+                } else if ( c1 instanceof long[] || c2 instanceof long[] ) {
+                    // Look up the values of the array chunk in the bitmap chunk
+                    boolean firstIsArray = c1 instanceof char[];
+                    char[] values = (char[])(firstIsArray ? c1 : c2);
+                    int n = firstIsArray ? counts[i] : other.counts[j];
+                    long[] bits = (long[])(firstIsArray ? c2 : c1);
+                    char[] result = new char[n];
+                    int m = 0;
+                    for ( int k=0; k<n; k++ ) {
+                        if ( (bits[values[k] >>> 6] & (1L << values[k])) != 0 ) {
+                            result[m++] = values[k];
+                        }
+                    }
+                    b.add( keys[i], result, m );
+                } else {
+                    char[] values1 = (char[])c1;
+                    char[] values2 = (char[])c2;
+                    int n1 = counts[i];
+                    int n2 = other.counts[j];
+                    char[] result = new char[Math.min( n1, n2 )];
+                    int m = 0;
+                    int k1 = 0;
+                    int k2 = 0;
+                    while ( k1 < n1 && k2 < n2 ) {
+                        if ( values1[k1] < values2[k2] ) {
+                            k1++;
+                        } else if ( values1[k1] > values2[k2] ) {
+                            k2++;
+                        } else {
+                            result[m++] = values1[k1];
+                            k1++;
+                            k2++;
+                        }
+                    }
+                    b.add( keys[i], result, m );
+                }
+                i++;
+                j++;
+            }
+        }
+        return b.build();
+    }
+
+
+    /** The number of docIDs in the set. */
+    public int cardinality() {
+        int n = 0;
+        for ( int c : counts ) {
+            n += c;
+        }
+        return n;
+    }
+
+
+    /** An estimate of the number of bytes used by the set. */
+    public long bytes() {
+        long n = 64 + 16L * keys.length;
+        for ( int i=0; i<chunks.length; i++ ) {
+            n += (chunks[i] instanceof long[]) ? 8 * WORDS : 2 * counts[i];
+        }
+        return n;
+    }
+
+
+    /**
+     *  Returns the docIDs of the set as a postings list (without positions).
+     */
+    public PostingsList toPostingsList() {
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>( cardinality() );
+        for ( int i=0; i<keys.length; i++ ) {
+            int high = keys[i] << 16;
+            if ( chunks[i] instanceof long[] ) {
+                long[] bits = (long[])chunks[i];
+                for ( int w=0; w<WORDS; w++ ) {
+                    long word = bits[w];
+                    while ( word != 0 ) {
+                        int low = (w << 6) + Long.numberOfTrailingZeros( word );
+                        entries.add( new PostingsEntry( high | low ));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] values = (char[])chunks[i];
+                for ( int k=0; k<counts[i]; k++ ) {
+                    entries.add( new PostingsEntry( high | values[k] ));
+                }
+            }
+        }
+        return new PostingsList( entries );
+    }
+
+
+    /** Merges two sorted arrays of keys. */
+    private static int[] unionKeys( int[] a, int[] b ) {
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while ( i < a.length || j < b.length ) {
+            int k;
+            if ( j == b.length || (i < a.length && a[i] < b[j]) ) {
+                k = a[i++];
+            } else if ( i == a.length || b[j] < a[i] ) {
+                k = b[j++];
+            } else {
+                k = a[i++];
+                j++;
+            }
+            result[n++] = k;
+        }
+        return Arrays.copyOf( result, n );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Collects the chunks of a new set, in key order.
+     */
+    private static class Builder {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        ArrayList<Object> chunks = new ArrayList<Object>();
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+
+        /** Adds a chunk, unless it is empty. */
+        void add( int key, Object chunk, int count ) {
+            if ( count > 0 ) {
+                keys.add( key );
+                chunks.add( chunk );
+                counts.add( count );
+            }
+        }
+
+        /** Adds a chunk given as a bitmap, which is copied, as an array if it has few docIDs. */
+        void addBits( int key, long[] bits ) {
+            int count = 0;
+            for ( long word : bits ) {
+                count += Long.bitCount( word );
+            }
+            if ( count > ARRAY_MAX ) {
+                add( key, bits.clone(), count );
+            } else if ( count > 0 ) {
+                char[] values = new char[count];
+                int m = 0;
+                for ( int w=0; w<WORDS; w++ ) {
+                    long word = bits[w];
+                    while ( word != 0 ) {
+                        values[m++] = (char)((w << 6) + Long.numberOfTrailingZeros( word ));
+                        word &= word - 1;
+                    }
+                }
+                add( key, values, count );
+            }
+        }
+
+        DocBitmap build() {
+            int n = keys.size();
+            int[] k = new int[n];
+            int[] c = new int[n];
+            for ( int i=0; i<n; i++ ) {
+                k[i] = keys.get( i );
+                c[i] = counts.get( i );
+            }
+            return new DocBitmap( k, chunks.toArray(), c );
+        }
+    }
+}
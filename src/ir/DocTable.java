@@ -0,0 +1,478 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ *   The names (paths) and lengths of the documents of an index, by docID,
+ *   and the Euclidean norms of their tf-idf vectors.
+ *
+ *   The lengths are kept in a dense array indexed by docID. The paths are
+ *   kept in one byte arena, in UTF-8, in the order they were added. Every
+ *   path is stored as the length of the prefix it shares with the path
+ *   before it, followed by the rest of its bytes (front coding), so the
+ *   directory names that most paths share are stored once per run. Every
+ *   @code{RESTART_INTERVAL}th path is stored in full, so a path is decoded
+ *   from at most that many entries.
+ *
+ *   The norms (and the largest term frequency of every document) are
+ *   computed once the index is built (see @code{Norms}), and are kept in
+ *   dense arrays as well. They depend on the document frequencies of all
+ *   terms, so they are dropped whenever a document is added or removed.
+ *
+ *   On disk, a table is stored in a binary file that is read through a
+ *   memory mapping.
+ */
+public class DocTable {
+
+    /** Every path with an entry number divisible by this is stored in full. */
+    public static final int RESTART_INTERVAL = 16;
+
+    /** The first four bytes of a document table file. */
+    static final int MAGIC = 0x44544231;
+
+    /** The first four bytes of a document table file with norms. */
+    static final int MAGIC_NORMS = 0x44544232;
+
+    /** The size of the header of a document table file. */
+    static final int HEADER_SIZE = 20;
+
+    /** The length of every document, by docID. */
+    private int[] lengths = new int[16];
+
+    /** The norm of the tf-idf vector of every document, by docID, or null if the norms are not known. */
+    private float[] norms = null;
+
+    /** The largest term frequency in every document, by docID, if the norms are known. */
+    private int[] maxTfs = null;
+
+    /** The number of changes made to the documents and their norms; the norms are computed for one version. */
+    private int version = 0;
+
+    /** The number of the path entry of every document, by docID, or -1 if there is no such document. */
+    private int[] entries = new int[16];
+
+    /** One more than the largest docID added so far. */
+    private int limit = 0;
+
+    /** The number of documents in the table. */
+    private int size = 0;
+
+    /** The front-coded paths. */
+    private byte[] paths = new byte[1 << 12];
+    private int pathsLength = 0;
+
+    /** The number of path entries (including those of removed documents). */
+    private int numPaths = 0;
+
+    /** The offset in @code{paths} of every @code{RESTART_INTERVAL}th entry. */
+    private int[] restarts = new int[16];
+
+    /** The last path added. */
+    private byte[] lastPath = new byte[0];
+
+
+    public DocTable() {
+        Arrays.fill( entries, -1 );
+    }
+
+
+    /** The number of documents in the table. */
+    public int size() {
+        return size;
+    }
+
+
+    /** One more than the largest docID in the table (or removed from it). */
+    public int limit() {
+        return limit;
+    }
+
+
+    /** Returns true if there is a document with this docID. */
+    public boolean contains( int docID ) {
+        return docID >= 0 && docID < limit && entries[docID] >= 0;
+    }
+
+
+    /** Returns the length of a document, or 0 if there is no such document. */
+    public int length( int docID ) {
+        return contains( docID ) ? lengths[docID] : 0;
+    }
+
+
+    /** Returns true if the norms of the documents are known. */
+    public boolean hasNorms() {
+        return norms != null;
+    }
+
+
+    /** Returns the norm of the tf-idf vector of a document, or 0 if it is not known. */
+    public double norm( int docID ) {
+        float[] n = norms;
+        return (n != null && contains( docID )) ? n[docID] : 0;
+    }
+
+
+    /** Returns the largest term frequency in a document, or 0 if it is not known. */
+    public int maxTf( int docID ) {
+        int[] m = maxTfs;
+        return (m != null && contains( docID )) ? m[docID] : 0;
+    }
+
+
+    /**
+     *  Returns what the tf-idf score of a document is divided by: the norm
+     *  of its vector if the norms are known (cosine similarity), and its
+     *  length otherwise.
+     */
+    public double normalizer( int docID ) {
+        float[] n = norms;
+        if ( n == null ) {
+            return length( docID );
+        }
+        // A document whose terms all have idf 0 scores 0
+        return (docID < n.length && n[docID] > 0) ? n[docID] : 1;
+    }
+
+
+    /** Returns the name (path) of a document, or null if there is no such document. */
+    public String name( int docID ) {
+        if ( !contains( docID )) {
+            return null;
+        }
+        return new String( decodePath( entries[docID] ), StandardCharsets.UTF_8 );
+    }
+
+
+    /** Decodes the path of an entry, from the last full path before it on. */
+    private byte[] decodePath( int entry ) {
+        int[] pos = { restarts[entry / RESTART_INTERVAL] };
+        byte[] path = new byte[64];
+        int pathLength = 0;
+        for ( int e = entry - entry % RESTART_INTERVAL; e <= entry; e++ ) {
+            int shared = PostingsCodec.readVByte( paths, pos );
+            int suffix = PostingsCodec.readVByte( paths, pos );
+            if ( shared + suffix > path.length ) {
+                path = Arrays.copyOf( path, 2 * (shared + suffix) );
+            }
+            System.arraycopy( paths, pos[0], path, shared, suffix );
+            pos[0] += suffix;
+            pathLength = shared + suffix;
+        }
+        return Arrays.copyOf( path, pathLength );
+    }
+
+
+    /**
+     *  Adds a document, or replaces the name and length of a document
+     *  with the same docID.
+     */
+    public synchronized void put( int docID, String name, int length ) {
+        ensureCapacity( docID + 1 );
+        if ( entries[docID] < 0 ) {
+            size++;
+        }
+        limit = Math.max( limit, docID + 1 );
+        lengths[docID] = length;
+        entries[docID] = addPath( name.getBytes( StandardCharsets.UTF_8 ));
+        changed();
+    }
+
+
+    /**
+     *  Adds all documents of another table.
+     */
+    public void putAll( DocTable other ) {
+        for ( int docID=0; docID<other.limit; docID++ ) {
+            if ( other.contains( docID )) {
+                put( docID, other.name( docID ), other.lengths[docID] );
+            }
+        }
+    }
+
+
+    /**
+     *  Removes a document. The space of its path is reclaimed when the
+     *  table is written.
+     */
+    public synchronized void remove( int docID ) {
+        if ( contains( docID )) {
+            entries[docID] = -1;
+            lengths[docID] = 0;
+            size--;
+            changed();
+        }
+    }
+
+
+    /** Removes all documents. */
+    public synchronized void clear() {
+        Arrays.fill( entries, -1 );
+        Arrays.fill( lengths, 0 );
+        limit = 0;
+        size = 0;
+        pathsLength = 0;
+        numPaths = 0;
+        lastPath = new byte[0];
+        changed();
+    }
+
+
+    /**
+     *  Returns the number of changes made to the documents and their norms,
+     *  so that what is computed from them can tell if it still holds.
+     */
+    synchronized int version() {
+        return version;
+    }
+
+
+    /** Drops the norms, which no longer hold after a change. */
+    private void changed() {
+        version++;
+        norms = null;
+        maxTfs = null;
+    }
+
+
+    /**
+     *  Sets the norms and the largest term frequencies of the documents,
+     *  unless a document was added or removed since @code{version}.
+     *
+     *  @return True if the norms were set.
+     */
+    synchronized boolean setNorms( float[] norms, int[] maxTfs, int version ) {
+        if ( version != this.version ) {
+            return false;
+        }
+        this.maxTfs = maxTfs;
+        this.norms = norms;
+        // What depends on the normalizers must be computed again
+        this.version++;
+        return true;
+    }
+
+
+    /** Makes room for the docIDs below @code{n}. */
+    private void ensureCapacity( int n ) {
+        if ( n > entries.length ) {
+            n = Math.max( 2 * entries.length, n );
+            lengths = Arrays.copyOf( lengths, n );
+            int old = entries.length;
+            entries = Arrays.copyOf( entries, n );
+            Arrays.fill( entries, old, n, -1 );
+        }
+    }
+
+
+    /** Appends a path to the arena, and returns its entry number. */
+    private int addPath( byte[] path ) {
+        int shared = 0;
+        if ( numPaths % RESTART_INTERVAL == 0 ) {
+            if ( numPaths / RESTART_INTERVAL == restarts.length ) {
+                restarts = Arrays.copyOf( restarts, 2 * restarts.length );
+            }
+            restarts[numPaths / RESTART_INTERVAL] = pathsLength;
+        } else {
+            int n = Math.min( path.length, lastPath.length );
+            while ( shared < n && path[shared] == lastPath[shared] ) {
+                shared++;
+            }
+        }
+        int suffix = path.length - shared;
+        if ( pathsLength + 10 + suffix > paths.length ) {
+            paths = Arrays.copyOf( paths, Math.max( 2 * paths.length, pathsLength + 10 + suffix ));
+        }
+        writeVByte( shared );
+        writeVByte( suffix );
+        System.arraycopy( path, shared, paths, pathsLength, suffix );
+        pathsLength += suffix;
+        lastPath = path;
+        return numPaths++;
+    }
+
+
+    private void writeVByte( int v ) {
+        while ( (v & ~0x7f) != 0 ) {
+            paths[pathsLength++] = (byte)(v | 0x80);
+            v >>>= 7;
+        }
+        paths[pathsLength++] = (byte)v;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes the table to a file: a header (the magic number, the limit,
+     *  the number of documents, the number of path entries and the number
+     *  of bytes of paths), the lengths and the entry numbers by docID, the
+     *  norms and the largest term frequencies by docID (if they are known),
+     *  the restart offsets and the paths. The paths of removed documents
+     *  are left out.
+     */
+    public synchronized void write( File file ) throws IOException {
+        DocTable t = this;
+        if ( numPaths > size ) {
+            t = new DocTable();
+            t.putAll( this );
+            t.ensureCapacity( limit );
+            t.limit = limit;
+            t.norms = norms;
+            t.maxTfs = maxTfs;
+        }
+        int numRestarts = (t.numPaths + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+        int numArrays = (t.norms != null) ? 4 : 2;
+        ByteBuffer b = ByteBuffer.allocate( HEADER_SIZE + 4 * (numArrays * t.limit + numRestarts) + t.pathsLength );
+        b.putInt( t.norms != null ? MAGIC_NORMS : MAGIC ).putInt( t.limit ).putInt( t.size ).putInt( t.numPaths ).putInt( t.pathsLength );
+        b.asIntBuffer().put( t.lengths, 0, t.limit ).put( t.entries, 0, t.limit );
+        if ( t.norms != null ) {
+            b.position( HEADER_SIZE + 4 * 2 * t.limit );
+            b.asFloatBuffer().put( t.norms, 0, t.limit );
+            b.position( HEADER_SIZE + 4 * 3 * t.limit );
+            b.asIntBuffer().put( t.maxTfs, 0, t.limit );
+        }
+        b.position( HEADER_SIZE + 4 * numArrays * t.limit );
+        b.asIntBuffer().put( t.restarts, 0, numRestarts );
+        b.position( HEADER_SIZE + 4 * (numArrays * t.limit + numRestarts) );
+        b.put( t.paths, 0, t.pathsLength );
+        b.flip();
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING )) {
+            while ( b.hasRemaining() ) {
+                channel.write( b );
+            }
+        }
+    }
+
+
+    /**
+     *  Replaces the contents of this table by a table written by
+     *  @code{write}. The file is mapped into memory, and the arrays are
+     *  copied out of the mapping in bulk.
+     */
+    public synchronized void read( File file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            ByteBuffer b = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            int magic = (b.limit() < HEADER_SIZE) ? 0 : b.getInt();
+            if ( magic != MAGIC && magic != MAGIC_NORMS ) {
+                throw new IOException( file + " is not a document table, the index must be rebuilt" );
+            }
+            int numArrays = (magic == MAGIC_NORMS) ? 4 : 2;
+            int newLimit = b.getInt();
+            int newSize = b.getInt();
+            int newNumPaths = b.getInt();
+            int newPathsLength = b.getInt();
+            int numRestarts = (newNumPaths + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+            int capacity = Math.max( 16, newLimit );
+            int[] newLengths = new int[capacity];
+            int[] newEntries = new int[capacity];
+            Arrays.fill( newEntries, newLimit, capacity, -1 );
+            int[] newRestarts = new int[Math.max( 16, numRestarts )];
+            b.asIntBuffer().get( newLengths, 0, newLimit ).get( newEntries, 0, newLimit );
+            float[] newNorms = null;
+            int[] newMaxTfs = null;
+            if ( magic == MAGIC_NORMS ) {
+                newNorms = new float[newLimit];
+                newMaxTfs = new int[newLimit];
+                b.position( HEADER_SIZE + 4 * 2 * newLimit );
+                b.asFloatBuffer().get( newNorms );
+                b.position( HEADER_SIZE + 4 * 3 * newLimit );
+                b.asIntBuffer().get( newMaxTfs );
+            }
+            b.position( HEADER_SIZE + 4 * numArrays * newLimit );
+            b.asIntBuffer().get( newRestarts, 0, numRestarts );
+            byte[] newPaths = new byte[Math.max( 1 << 12, newPathsLength )];
+            b.position( HEADER_SIZE + 4 * (numArrays * newLimit + numRestarts) );
+            b.get( newPaths, 0, newPathsLength );
+
+            lengths = newLengths;
+            entries = newEntries;
+            restarts = newRestarts;
+            paths = newPaths;
+            limit = newLimit;
+            size = newSize;
+            numPaths = newNumPaths;
+            pathsLength = newPathsLength;
+            version++;
+            norms = newNorms;
+            maxTfs = newMaxTfs;
+            // The next path is compared with the last one stored
+            lastPath = (numPaths == 0) ? new byte[0] : decodePath( numPaths - 1 );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Computes the norms of the tf-idf vectors of the documents of a
+     *  table, from the postings of all terms, one term at a time. The idf
+     *  of a term is log10(N/df), with N the number of documents, as in
+     *  ranked retrieval.
+     */
+    static class Norms {
+
+        final DocTable docs;
+
+        /** The version of the table the norms are computed for. */
+        final int version;
+
+        final int numDocs;
+
+        /** The sum of the squared weights of the terms of every document, by docID. */
+        final double[] sums;
+
+        final int[] maxTfs;
+
+        Norms( DocTable docs ) {
+            synchronized ( docs ) {
+                this.docs = docs;
+                version = docs.version;
+                numDocs = docs.size;
+                sums = new double[docs.limit];
+                maxTfs = new int[docs.limit];
+            }
+        }
+
+        /** Adds the postings of one term, which are read to the end. */
+        void add( PostingsCursor cursor ) {
+            int df = cursor.size();
+            double idf = (df > 0 && df <= numDocs) ? Math.log10( (double)numDocs / df ) : 0;
+            for ( int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc() ) {
+                if ( docID < sums.length ) {
+                    int tf = cursor.freq();
+                    double w = tf * idf;
+                    sums[docID] += w * w;
+                    maxTfs[docID] = Math.max( maxTfs[docID], tf );
+                }
+            }
+        }
+
+        /**
+         *  Sets the norms of the table, unless a document was added or
+         *  removed since this object was made.
+         *
+         *  @return True if the norms were set.
+         */
+        boolean set() {
+            float[] norms = new float[sums.length];
+            for ( int i=0; i<sums.length; i++ ) {
+                norms[i] = (float)Math.sqrt( sums[i] );
+            }
+            return docs.setNorms( norms, maxTfs, version );
+        }
+    }
+}
@@ -28,6 +28,9 @@ public class Engine {
     /** K-gram index */
     KGramIndex kgIndex;
 
+    /** The terms and their IDs, shared by the index and the k-gram index. */
+    Lexicon lexicon = new Lexicon();
+
     /** The searcher used to search the index. */
     Searcher searcher;
 
@@ -55,6 +58,36 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** The number of threads used for indexing (1 means single-threaded). */
+    int num_threads = 1;
+
+    /** Memory budget (in bytes) of an index block of the persistent index. */
+    long block_budget = PersistentHashedIndex.DEFAULT_BLOCK_BUDGET;
+
+    /** Only index the files that changed since the persistent index was last updated. */
+    boolean is_updating = false;
+
+    /** Read the files to be indexed through memory mapping. */
+    boolean mapped_tokenizer = false;
+
+    /** Only search the persistent index on disk, through memory mapping. */
+    boolean read_only = false;
+
+    /** Keep the postings of the main-memory index outside the Java heap. */
+    boolean off_heap = false;
+
+    /** If positive, ranked queries return only the top k documents (0 means all). */
+    int top_k = 0;
+
+    /** Top-k ranked queries read postings ordered by impact (see ImpactIndex). */
+    boolean impact_ordered = false;
+
+    /** Memory budget (in bytes) of the cache of query results (0 means no cache). */
+    long query_cache_bytes = 0;
+
+    /** Memory budget (in bytes) of the postings cache of the persistent index (0 means no cache). */
+    long postings_cache_bytes = 0;
+
 
     /* ----------------------------------------------- */
 
@@ -68,21 +101,30 @@ public class Engine {
 
         switch(indexType){
             case "HashedIndex":
-                index = new HashedIndex();
+                index = off_heap ? new HashedIndex( lexicon, new OffHeapPostingsStore() ) : new HashedIndex( lexicon );
                 break;
             case "PersistentHashedIndex":
-                index = new PersistentHashedIndex();
+                index = openPersistentIndex();
                 break;
             default:
                 System.out.println("Unable to detect index type, set to HashedIndex");
-                index = new HashedIndex();
+                index = new HashedIndex( lexicon );
+        }
+        if ( is_updating ) {
+            // Updates are kept as deltas on top of the persistent index
+            index = new IncrementalIndex( (PersistentHashedIndex)index );
         }
 
         // Initialize other instances
-        kgIndex = new KGramIndex(2); // set a bi-gram index
+        kgIndex = new KGramIndex(2, lexicon); // set a bi-gram index
         speller = new SpellChecker(index, kgIndex);
         indexer = new Indexer(index, kgIndex, patterns_file);
+        indexer.mapped_tokenizer = mapped_tokenizer;
         searcher = new Searcher(index, kgIndex);
+        searcher.topK = top_k;
+        if ( query_cache_bytes > 0 ) {
+            searcher.cache = new QueryCache( query_cache_bytes );
+        }
         gui = new SearchGUI(this);
         gui.init();
 
@@ -96,9 +138,20 @@ public class Engine {
             synchronized ( indexLock ) {
                 gui.displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
-                for ( int i=0; i<dirNames.size(); i++ ) {
+                if ( is_updating ) {
+                    // The k-gram index needs the terms of the index on disk as well
+                    for ( String term : ((IncrementalIndex)index).base.readTerms() ) {
+                        kgIndex.insert( term );
+                    }
+                    indexer.updateFiles( dirNames, (IncrementalIndex)index );
+                }
+                for ( int i=0; i<dirNames.size() && !is_updating; i++ ) {
                     File dokDir = new File( dirNames.get( i ));
-                    indexer.processFiles( dokDir, is_indexing );
+                    if ( num_threads > 1 ) {
+                        indexer.processFilesParallel( dokDir, num_threads );
+                    } else {
+                        indexer.processFiles( dokDir, is_indexing );
+                    }
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
@@ -111,10 +164,53 @@ public class Engine {
         } else {
             gui.displayInfoText( "Index is loaded from disk" );
         }
+        if ( impact_ordered ) {
+            synchronized ( indexLock ) {
+                searcher.impacts = openImpactIndex();
+            }
+        }
 
     }
 
 
+    /**
+     *   Returns the terms of the index: those of the lexicon, or those on
+     *   disk if nothing was indexed.
+     */
+    private Iterable<String> indexTerms() {
+        if ( lexicon.size() > 0 ) {
+            ArrayList<String> terms = new ArrayList<String>( lexicon.size() );
+            for ( int id=0; id<lexicon.size(); id++ ) {
+                terms.add( lexicon.term( id ));
+            }
+            return terms;
+        }
+        if ( index instanceof IncrementalIndex ) {
+            return ((IncrementalIndex)index).base.readTerms();
+        }
+        if ( index instanceof PersistentHashedIndex ) {
+            return ((PersistentHashedIndex)index).readTerms();
+        }
+        return new ArrayList<String>();
+    }
+
+
+    /**
+     *   Returns the impact-ordered postings of the index: those saved with
+     *   the persistent index (see @code{PersistentHashedIndex.impacts}), or
+     *   new ones for an index in main memory.
+     */
+    private ImpactIndex openImpactIndex() {
+        if ( index instanceof IncrementalIndex ) {
+            return ((IncrementalIndex)index).base.impacts( index, indexTerms() );
+        }
+        if ( index instanceof PersistentHashedIndex ) {
+            return ((PersistentHashedIndex)index).impacts( index, indexTerms() );
+        }
+        return new ImpactIndex( index, indexTerms() );
+    }
+
+
     /* ----------------------------------------------- */
 
     /**
@@ -151,11 +247,74 @@ public class Engine {
                 if (i < args.length){
                     indexType = args[i++];
                 }
+            } else if ( "-threads".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    num_threads = Math.max( 1, Integer.parseInt( args[i++] ));
+                }
+            } else if ( "-mm".equals( args[i] )) {
+                i++;
+                mapped_tokenizer = true;
+            } else if ( "-update".equals( args[i] )) {
+                i++;
+                is_updating = true;
+            } else if ( "-ro".equals( args[i] )) {
+                i++;
+                read_only = true;
+            } else if ( "-offheap".equals( args[i] )) {
+                i++;
+                off_heap = true;
+            } else if ( "-topk".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    top_k = Math.max( 0, Integer.parseInt( args[i++] ));
+                }
+            } else if ( "-pcache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    postings_cache_bytes = Long.parseLong( args[i++] ) << 20;
+                }
+            } else if ( "-qcache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    query_cache_bytes = Long.parseLong( args[i++] ) << 20;
+                }
+            } else if ( "-impacts".equals( args[i] )) {
+                i++;
+                impact_ordered = true;
+            } else if ( "-blockMB".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    block_budget = Long.parseLong( args[i++] ) << 20;
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
             }
         }                   
+        if ( read_only ) {
+            // A read-only index is searched as it is on disk
+            indexType = "PersistentHashedIndex";
+            is_indexing = false;
+            is_updating = false;
+        }
+        if ( is_updating && !"PersistentHashedIndex".equals( indexType )) {
+            // Updates are kept as deltas on top of the persistent index
+            System.err.println( "Warning: -update works on the persistent index, so the index type " + indexType + " is not used" );
+            indexType = "PersistentHashedIndex";
+        }
+    }
+
+
+    /**
+     *  Opens the persistent index, with a postings cache if one was asked for.
+     */
+    private PersistentHashedIndex openPersistentIndex() {
+        PersistentHashedIndex persistent = new PersistentHashedIndex( PersistentHashedIndex.INDEXDIR, block_budget, read_only );
+        if ( postings_cache_bytes > 0 ) {
+            persistent.postingsCache = new PostingsCache( postings_cache_bytes );
+        }
+        return persistent;
     }
 
 
@@ -8,34 +8,62 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index in main memory. The terms are given IDs
+ *   by a lexicon (which may be shared with the k-gram index), and the
+ *   postings are kept in a postings store by term ID: on the heap by
+ *   default, or off the heap in an OffHeapPostingsStore. A PostingsList
+ *   is only built when the postings are asked for, so the index itself
+ *   holds no object per posting.
  */
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    /** The terms of the index and their IDs. */
+    final Lexicon lexicon;
+
+    /** The postings of the terms, by term ID. */
+    final PostingsStore store;
+
+    /** The score bounds of the terms, or null if they have not been computed since the last change. */
+    private volatile ScoreBounds.Table bounds;
+
+
+    /** Constructor for an index with a lexicon of its own. */
+    public HashedIndex() {
+        this( new Lexicon() );
+    }
+
+    /** Constructor for an index that gives its terms the IDs of @code{lexicon}. */
+    public HashedIndex( Lexicon lexicon ) {
+        this( lexicon, new HeapPostingsStore() );
+    }
+
+    /** Constructor for an index that keeps its postings in @code{store}. */
+    public HashedIndex( Lexicon lexicon, PostingsStore store ) {
+        this.lexicon = lexicon;
+        this.store = store;
+    }
 
 
     /**
-     *  Inserts this token in the hashtable.
+     *  Inserts this token in the index.
      */
     public void insert( String token, int docID, int offset ) {
-        if(!index.containsKey(token)){
-            PostingsList new_postings = new PostingsList();
-            new_postings.add(docID, offset);
-            index.put(token, new_postings);
-        }
-        else{
-            index.get(token).add(docID, offset);
-        }
+        bounds = null;
+        store.add( lexicon.add( token ), docID, offset );
+    }
 
+
+    /**
+     *  Inserts the term with this ID (in the lexicon of the index).
+     */
+    public void insert( int termID, int docID, int offset ) {
+        bounds = null;
+        store.add( termID, docID, offset );
     }
 
 
@@ -44,14 +72,127 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        if(!index.containsKey(token)){return null;}
-        else{return index.get(token);}
+        return store.get( lexicon.id( token ));
+    }
+
+
+    /**
+     *  Returns a cursor over the postings of a specific term, or null if
+     *  the term is not in the index.
+     */
+    public PostingsCursor cursor( String token ) {
+        return store.cursor( lexicon.id( token ));
+    }
+
+
+    /**
+     *  Returns the score bounds of a specific term, or null if the term is
+     *  not in the index or the bounds have not been computed (they are
+     *  computed by @code{cleanup}, once indexing is done).
+     */
+    public ScoreBounds scoreBounds( String token ) {
+        ScoreBounds.Table table = bounds;
+        return table == null ? null : table.get( lexicon.id( token ));
+    }
+
+
+    /**
+     *  Returns the postings for the term with this ID, or null if the term
+     *  is not in the index.
+     */
+    PostingsList getPostings( int termID ) {
+        return store.get( termID );
+    }
+
+
+    /**
+     *  Returns the number of documents containing a term.
+     */
+    public int docFrequency( String token ) {
+        return store.docFrequency( lexicon.id( token ));
+    }
+
+
+    /**
+     *  Returns the first occurrence of the term with this ID, as the docID
+     *  in the high and the offset in the low 32 bits, or -1 if the term is
+     *  not in the index.
+     */
+    long firstOccurrence( int termID ) {
+        return store.firstOccurrence( termID );
+    }
+
+
+    /**
+     *  Returns the terms in the index, in the order of their IDs.
+     */
+    ArrayList<String> terms() {
+        ArrayList<String> terms = new ArrayList<String>();
+        for ( int id=0; id<lexicon.size(); id++ ) {
+            if ( store.docFrequency( id ) > 0 ) {
+                terms.add( lexicon.term( id ));
+            }
+        }
+        return terms;
+    }
+
+
+    /**
+     *  Puts the postings of a term in the index, replacing any postings
+     *  the term already had.
+     */
+    void putPostings( String token, PostingsList postings ) {
+        bounds = null;
+        store.put( lexicon.add( token ), postings );
+    }
+
+
+    /**
+     *  Appends postings to those of the term with this ID. The docIDs must
+     *  come after those the term already has (used when merging index
+     *  shards).
+     */
+    void append( int termID, PostingsList postings ) {
+        bounds = null;
+        PostingsList old = store.get( termID );
+        if ( old != null ) {
+            old.list.addAll( postings.list );
+            postings = old;
+        }
+        store.put( termID, postings );
+    }
+
+
+    /**
+     *  Removes a term from the index and returns its postings, or null
+     *  if the term is not in the index (used when merging index shards).
+     */
+    PostingsList remove( String token ) {
+        int termID = lexicon.id( token );
+        PostingsList postings = store.get( termID );
+        if ( postings != null ) {
+            bounds = null;
+            store.remove( termID );
+        }
+        return postings;
     }
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Trims the postings store to the space it uses, and computes the
+     *  norms of the documents and then the score bounds of the terms, once
+     *  indexing is done.
      */
     public void cleanup() {
+        store.trim();
+        DocTable.Norms norms = new DocTable.Norms( docs );
+        for ( int id=0; id<lexicon.size(); id++ ) {
+            PostingsCursor cursor = store.cursor( id );
+            if ( cursor != null ) {
+                norms.add( cursor );
+            }
+        }
+        norms.set();
+        bounds = new ScoreBounds.Table( store, lexicon.size(), docs );
     }
 }
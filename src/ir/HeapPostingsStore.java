@@ -0,0 +1,290 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   Keeps the postings of every term in one growable int array on the
+ *   heap, as the docID, the number of positions and the positions of
+ *   every document in turn. The store holds no object per posting.
+ *
+ *   For every @code{SKIP_INTERVAL}th document of a term, its docID and
+ *   where it starts in the postings array are also kept in a skip table,
+ *   so that a cursor can jump ahead to a docID without reading all the
+ *   documents before it.
+ */
+public class HeapPostingsStore implements PostingsStore {
+
+    /** The postings of every term, by term ID (null for a term without postings). */
+    private int[][] postings = new int[1 << 13][];
+
+    /** The number of ints used in each postings array. */
+    private int[] used = new int[1 << 13];
+
+    /** The position in the postings array where the entry of the last document starts. */
+    private int[] last = new int[1 << 13];
+
+    /** The number of documents of every term. */
+    private int[] df = new int[1 << 13];
+
+    /** A skip entry is kept for every SKIP_INTERVAL-th document of a term (but the first). */
+    static final int SKIP_INTERVAL = 32;
+
+    /** The docIDs of the skip entries of every term (null for a term with at most SKIP_INTERVAL documents). */
+    private int[][] skipDocs = new int[1 << 13][];
+
+    /** Where the documents of the skip entries start in the postings array. */
+    private int[][] skipStarts = new int[1 << 13][];
+
+
+    public void add( int termID, int docID, int offset ) {
+        if ( termID >= postings.length ) {
+            grow( termID );
+        }
+        int[] p = postings[termID];
+        int n = used[termID];
+        if ( p != null && p[last[termID]] == docID ) {
+            if ( n == p.length ) {
+                p = postings[termID] = Arrays.copyOf( p, n + (n >> 1) + 1 );
+            }
+            p[n++] = offset;
+            p[last[termID] + 1]++;
+        } else {
+            if ( p == null ) {
+                p = postings[termID] = new int[4];
+            } else if ( n + 3 > p.length ) {
+                // Grow by half; most terms occur in only a few documents
+                p = postings[termID] = Arrays.copyOf( p, n + (n >> 1) + 3 );
+            }
+            last[termID] = n;
+            addSkip( termID, df[termID], docID, n );
+            p[n++] = docID;
+            p[n++] = 1;
+            p[n++] = offset;
+            df[termID]++;
+        }
+        used[termID] = n;
+    }
+
+
+    public PostingsList get( int termID ) {
+        if ( termID < 0 || termID >= postings.length || postings[termID] == null ) {
+            return null;
+        }
+        int[] p = postings[termID];
+        int n = used[termID];
+        ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>( df[termID] );
+        for ( int i=0; i<n; i+=2+p[i+1] ) {
+            list.add( entry( p, i ));
+        }
+        return new PostingsList( list );
+    }
+
+
+    /**
+     *  Adds a skip entry for the document that starts at @code{start}, if
+     *  it is the @code{k}th document of the term and @code{k} is a
+     *  multiple of @code{SKIP_INTERVAL}.
+     */
+    private void addSkip( int termID, int k, int docID, int start ) {
+        if ( k == 0 || k % SKIP_INTERVAL != 0 ) {
+            return;
+        }
+        int j = k / SKIP_INTERVAL - 1;
+        if ( skipDocs[termID] == null ) {
+            skipDocs[termID] = new int[4];
+            skipStarts[termID] = new int[4];
+        } else if ( j == skipDocs[termID].length ) {
+            skipDocs[termID] = Arrays.copyOf( skipDocs[termID], 2*j );
+            skipStarts[termID] = Arrays.copyOf( skipStarts[termID], 2*j );
+        }
+        skipDocs[termID][j] = docID;
+        skipStarts[termID][j] = start;
+    }
+
+
+    public PostingsCursor cursor( int termID ) {
+        if ( docFrequency( termID ) == 0 ) {
+            return null;
+        }
+        return new Cursor( postings[termID], used[termID], df[termID], skipDocs[termID], skipStarts[termID] );
+    }
+
+
+    /** Builds the entry that starts at @code{i} in the postings array @code{p}. */
+    private static PostingsEntry entry( int[] p, int i ) {
+        int tf = p[i+1];
+        return new PostingsEntry( p[i], Arrays.copyOfRange( p, i+2, i+2+tf ), tf );
+    }
+
+
+    public int docFrequency( int termID ) {
+        return (termID >= 0 && termID < df.length) ? df[termID] : 0;
+    }
+
+
+    public long firstOccurrence( int termID ) {
+        if ( termID >= postings.length || postings[termID] == null ) {
+            return -1;
+        }
+        int[] p = postings[termID];
+        return ((long)p[0] << 32) | p[2];
+    }
+
+
+    public void put( int termID, PostingsList list ) {
+        if ( termID >= postings.length ) {
+            grow( termID );
+        }
+        int n = 0;
+        for ( int i=0; i<list.size(); i++ ) {
+            n += 2 + list.get( i ).size();
+        }
+        int[] p = new int[n];
+        n = 0;
+        skipDocs[termID] = null;
+        skipStarts[termID] = null;
+        for ( int i=0; i<list.size(); i++ ) {
+            PostingsEntry e = list.get( i );
+            last[termID] = n;
+            addSkip( termID, i, e.docID, n );
+            p[n++] = e.docID;
+            p[n++] = e.size();
+            System.arraycopy( e.positions, 0, p, n, e.size() );
+            n += e.size();
+        }
+        postings[termID] = (n > 0) ? p : null;
+        used[termID] = n;
+        df[termID] = list.size();
+    }
+
+
+    public void remove( int termID ) {
+        if ( termID < postings.length ) {
+            postings[termID] = null;
+            used[termID] = 0;
+            df[termID] = 0;
+            skipDocs[termID] = null;
+            skipStarts[termID] = null;
+        }
+    }
+
+
+    /** Trims the postings arrays and the skip tables to the space they use. */
+    public void trim() {
+        for ( int id=0; id<postings.length; id++ ) {
+            if ( postings[id] != null && postings[id].length > used[id] ) {
+                postings[id] = Arrays.copyOf( postings[id], used[id] );
+            }
+            int skips = (df[id] - 1) / SKIP_INTERVAL;
+            if ( skipDocs[id] != null && skipDocs[id].length > skips ) {
+                skipDocs[id] = Arrays.copyOf( skipDocs[id], skips );
+                skipStarts[id] = Arrays.copyOf( skipStarts[id], skips );
+            }
+        }
+    }
+
+
+    /** Makes room for the term with this ID. */
+    private void grow( int termID ) {
+        int size = Math.max( 2*postings.length, termID+1 );
+        postings = Arrays.copyOf( postings, size );
+        used = Arrays.copyOf( used, size );
+        last = Arrays.copyOf( last, size );
+        df = Arrays.copyOf( df, size );
+        skipDocs = Arrays.copyOf( skipDocs, size );
+        skipStarts = Arrays.copyOf( skipStarts, size );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A cursor over the entries of one postings array. It advances by
+     *  galloping through the skip table of the term, and then reads at
+     *  most @code{SKIP_INTERVAL} documents.
+     */
+    private static class Cursor implements PostingsCursor {
+
+        final int[] p;
+
+        /** The number of ints used in @code{p}. */
+        final int n;
+
+        final int size;
+
+        /** The start of the current entry. */
+        int i = -1;
+
+        /** The start of the next entry. */
+        int next = 0;
+
+        int docID = -1;
+
+        /** The docIDs of the skip entries and where their documents start (null if there are none). */
+        final int[] skipDocs, skipStarts;
+
+        /** The number of skip entries. */
+        final int skips;
+
+        /** The first skip entry that may still be ahead of the cursor. */
+        int skip = 0;
+
+        Cursor( int[] p, int n, int size, int[] skipDocs, int[] skipStarts ) {
+            this.p = p;
+            this.n = n;
+            this.size = size;
+            this.skipDocs = skipDocs;
+            this.skipStarts = skipStarts;
+            skips = (size - 1) / SKIP_INTERVAL;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            if ( next >= n ) {
+                i = n;
+                return docID = NO_MORE_DOCS;
+            }
+            i = next;
+            next = i + 2 + p[i+1];
+            return docID = p[i];
+        }
+
+        public int advance( int target ) {
+            if ( skip < skips ) {
+                // Jump to the last skip entry before the target, if it is ahead
+                int e = PostingsList.gallop( skipDocs, skip, skips, target );
+                if ( e > skip && skipDocs[e-1] > docID ) {
+                    next = skipStarts[e-1];
+                }
+                skip = e;
+            }
+            int d;
+            while ( (d = nextDoc()) < target ) {
+            }
+            return d;
+        }
+
+        public int freq() {
+            return p[i+1];
+        }
+
+        public int[] positions() {
+            return Arrays.copyOfRange( p, i+2, i+2+p[i+1] );
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.Arrays;
+
+
+/**
+ *   The postings of the terms of an index, ordered by impact, for top-k
+ *   ranked retrieval that reads the highest impacts first and stops as
+ *   soon as the top k is settled (score-at-a-time evaluation).
+ *
+ *   The impact of a posting is what it adds to the tf-idf score of the
+ *   document for a query term of weight 1: the document weight tf * idf
+ *   times the idf of the query term, divided by the norm (or the length)
+ *   of the document, as in ranked retrieval. It is
+ *   computed when the impact index is built, and quantized to 8 bits: the
+ *   largest impact of a term is @code{LEVELS} steps, and every impact is
+ *   rounded up to a whole step. The postings of a term are kept in
+ *   segments of equal impact, the highest first, with the docIDs of a
+ *   segment in increasing order.
+ *
+ *   A query adds up the segments of its terms in decreasing order of
+ *   weighted impact. What the segments not read yet can still add to a
+ *   document is bounded by the sum of the next impact of every term, so
+ *   once that is less than the gap between the k-th and the (k+1)-th
+ *   document, no later segment can change which documents are in the top
+ *   k. The top k is picked by the quantized scores, which may rank the
+ *   documents a little differently from the exact ones, so the caller
+ *   asks for a few times more documents than it needs (see
+ *   @code{Searcher.impactCandidates}) and scores these exactly.
+ *
+ *   The impacts hold for the documents as they were when the index was
+ *   built. Once a document is added or removed, or the norms change, the
+ *   impact index is stale (see @code{isCurrent}). The impacts of a
+ *   persistent index are saved with it (see @code{write}), together with
+ *   a stamp of the documents and their norms, so they are only read back
+ *   for the same documents.
+ */
+public class ImpactIndex {
+
+    /** The number of steps of the largest impact of a term. */
+    public static final int LEVELS = 255;
+
+    /** The first four bytes of an impact index file. */
+    static final int MAGIC = 0x494d5031;
+
+    /** The terms; the term ID is the place of the term in the arrays below. */
+    final Lexicon terms = new Lexicon();
+
+    /** The first segment of every term; the segments of term t are start[t]..start[t+1]-1. */
+    int[] start = new int[1024];
+
+    /** The impact of one step, for every term. */
+    double[] units = new double[1024];
+
+    /** The quantized impact of every segment, from 0 to @code{LEVELS}. */
+    byte[] levels = new byte[1024];
+
+    /** The end of every segment in @code{docIDs}; a segment starts where the one before it ends. */
+    int[] ends = new int[1024];
+
+    /** The docIDs of all segments, one after the other. */
+    int[] docIDs = new int[1 << 16];
+
+    int numSegments = 0;
+
+    final DocTable docs;
+
+    /** The version of the document table the impacts are computed for. */
+    final int version;
+
+    /** The stamp of the documents the impacts are computed for (see @code{stamp}). */
+    final long stamp;
+
+
+    /**
+     *  Builds the impact-ordered postings of the given terms of an index.
+     *  Terms that are not in the index are left out.
+     */
+    public ImpactIndex( Index index, Iterable<String> terms ) {
+        docs = index.docs;
+        version = docs.version();
+        stamp = stamp( docs );
+        int numDocs = docs.size();
+        int[] postings = new int[256];
+        double[] impacts = new double[256];
+        int[] quantized = new int[256];
+        int[] counts = new int[LEVELS + 1];
+        int numPostings = 0;
+        for ( String term : terms ) {
+            PostingsCursor cursor = index.cursor( term );
+            if ( cursor == null || cursor.size() == 0 || this.terms.id( term ) >= 0 ) {
+                continue;
+            }
+            // The same idf as in ranked retrieval
+            double idf = Math.log10( (double)numDocs / cursor.size() );
+            int n = 0;
+            double max = 0;
+            for ( int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc() ) {
+                if ( n == postings.length ) {
+                    postings = Arrays.copyOf( postings, 2 * n );
+                    impacts = Arrays.copyOf( impacts, 2 * n );
+                    quantized = Arrays.copyOf( quantized, 2 * n );
+                }
+                double impact = cursor.freq() * idf * idf / docs.normalizer( docID );
+                postings[n] = docID;
+                impacts[n] = (impact > 0 && impact < Double.POSITIVE_INFINITY) ? impact : 0;
+                max = Math.max( max, impacts[n] );
+                n++;
+            }
+            if ( n == 0 ) {
+                continue;
+            }
+
+            // Quantize, and count the postings of every level
+            double unit = max / LEVELS;
+            Arrays.fill( counts, 0 );
+            for ( int i=0; i<n; i++ ) {
+                quantized[i] = impacts[i] > 0 ? (int)Math.min( LEVELS, Math.max( 1, Math.ceil( impacts[i] / unit ))) : 0;
+                counts[quantized[i]]++;
+            }
+
+            // One segment per level, the highest first
+            int id = this.terms.add( term );
+            if ( id + 1 >= start.length ) {
+                start = Arrays.copyOf( start, 2 * start.length );
+                units = Arrays.copyOf( units, start.length );
+            }
+            if ( numPostings + n > docIDs.length ) {
+                docIDs = Arrays.copyOf( docIDs, Math.max( 2 * docIDs.length, numPostings + n ));
+            }
+            start[id] = numSegments;
+            units[id] = unit;
+            for ( int level=LEVELS; level>=0; level-- ) {
+                if ( counts[level] > 0 ) {
+                    if ( numSegments == levels.length ) {
+                        levels = Arrays.copyOf( levels, 2 * numSegments );
+                        ends = Arrays.copyOf( ends, 2 * numSegments );
+                    }
+                    levels[numSegments] = (byte)level;
+                    // Where the postings of this level go, until they are placed
+                    int from = numPostings;
+                    numPostings += counts[level];
+                    ends[numSegments++] = numPostings;
+                    counts[level] = from;
+                }
+            }
+            // A stable counting sort, so the docIDs of a segment stay in order
+            for ( int i=0; i<n; i++ ) {
+                docIDs[counts[quantized[i]]++] = postings[i];
+            }
+            start[id + 1] = numSegments;
+        }
+    }
+
+
+    /** Constructor for the impacts read from a file, computed for the documents of @code{docs} as of @code{version}. */
+    private ImpactIndex( DocTable docs, int version, long stamp ) {
+        this.docs = docs;
+        this.version = version;
+        this.stamp = stamp;
+    }
+
+
+    /**
+     *  Returns a stamp of the documents of a table and what their scores
+     *  are divided by, which changes (but for hash collisions) whenever a
+     *  document is added or removed, or the norms change.
+     */
+    static long stamp( DocTable docs ) {
+        long h = docs.size();
+        for ( int docID=0; docID<docs.limit(); docID++ ) {
+            h = 31 * h + Double.doubleToLongBits( docs.normalizer( docID ));
+        }
+        return h;
+    }
+
+
+    /**
+     *  Reads an impact index written by @code{write}, or returns null if it
+     *  was computed for other documents than those of @code{docs}.
+     */
+    public static ImpactIndex read( File file, DocTable docs ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( file + " is not an impact index" );
+            }
+            int version = docs.version();
+            long stamp = in.readLong();
+            if ( stamp != stamp( docs )) {
+                return null;
+            }
+            ImpactIndex impacts = new ImpactIndex( docs, version, stamp );
+            int numTerms = in.readInt();
+            for ( int id=0; id<numTerms; id++ ) {
+                impacts.terms.add( in.readUTF() );
+            }
+            impacts.start = new int[numTerms + 1];
+            impacts.units = new double[numTerms + 1];
+            for ( int id=0; id<=numTerms; id++ ) {
+                impacts.start[id] = in.readInt();
+            }
+            for ( int id=0; id<numTerms; id++ ) {
+                impacts.units[id] = in.readDouble();
+            }
+            int n = impacts.numSegments = in.readInt();
+            impacts.levels = new byte[n];
+            impacts.ends = new int[n];
+            in.readFully( impacts.levels );
+            for ( int s=0; s<n; s++ ) {
+                impacts.ends[s] = in.readInt();
+            }
+            impacts.docIDs = new int[n > 0 ? impacts.ends[n-1] : 0];
+            for ( int i=0; i<impacts.docIDs.length; i++ ) {
+                impacts.docIDs[i] = in.readInt();
+            }
+            return impacts;
+        }
+    }
+
+
+    /**
+     *  Writes the impact index to a file, with the stamp of the documents
+     *  it was computed for.
+     */
+    public void write( File file ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeLong( stamp );
+            int numTerms = terms.size();
+            out.writeInt( numTerms );
+            for ( int id=0; id<numTerms; id++ ) {
+                out.writeUTF( terms.term( id ));
+            }
+            for ( int id=0; id<=numTerms; id++ ) {
+                out.writeInt( start[id] );
+            }
+            for ( int id=0; id<numTerms; id++ ) {
+                out.writeDouble( units[id] );
+            }
+            out.writeInt( numSegments );
+            out.write( levels, 0, numSegments );
+            for ( int s=0; s<numSegments; s++ ) {
+                out.writeInt( ends[s] );
+            }
+            int numPostings = numSegments > 0 ? ends[numSegments-1] : 0;
+            for ( int i=0; i<numPostings; i++ ) {
+                out.writeInt( docIDs[i] );
+            }
+        }
+    }
+
+
+    /** True if no document has been added or removed, and the norms are the same, since the impacts were computed. */
+    public boolean isCurrent() {
+        return docs.version() == version;
+    }
+
+
+    /** Returns the ID of a term, or -1 if the term has no impacts. */
+    public int termID( String term ) {
+        return terms.id( term );
+    }
+
+
+    /** Returns the weighted impact of segment @code{s} of term @code{id}, or 0 if the term has no more segments. */
+    private double value( int id, int s, double weight ) {
+        return s < start[id + 1] ? weight * (levels[s] & 0xff) * units[id] : 0;
+    }
+
+
+    /**
+     *  Finds the k documents with the highest quantized scores. The score
+     *  of a document is the sum of @code{weights[i]} times the quantized
+     *  impact of term @code{termIDs[i]}, plus @code{priorWeight} times
+     *  @code{prior[docID]} if there is a prior; only the documents of the
+     *  terms are ranked.
+     *
+     *  @param weights The (non-negative) weights of the query terms.
+     *  @param prior   A static score of every document, by docID, or null.
+     *  @param acc     The accumulator the scores are added up in.
+     *  @return The docIDs of the top k documents, in increasing order.
+     */
+    public int[] topK( int[] termIDs, double[] weights, double[] prior, double priorWeight, int k, ScoreAccumulator acc ) {
+        int m = termIDs.length;
+        int[] seg = new int[m];
+        double[] next = new double[m];
+        for ( int i=0; i<m; i++ ) {
+            seg[i] = start[termIDs[i]];
+            next[i] = value( termIDs[i], seg[i], weights[i] );
+        }
+        double priorMax = 0;
+        if ( prior != null ) {
+            for ( double p : prior ) {
+                priorMax = Math.max( priorMax, p );
+            }
+            priorMax *= priorWeight;
+        }
+
+        acc.reset( docs.limit() );
+        // The terms that have segments left, in a max-heap by their next segment
+        int[] heap = new int[m];
+        int h = 0;
+        for ( int i=0; i<m; i++ ) {
+            if ( seg[i] < start[termIDs[i] + 1] ) {
+                heap[h++] = i;
+            }
+        }
+        for ( int i=h/2-1; i>=0; i-- ) {
+            siftDown( heap, h, i, next );
+        }
+        long read = 0;
+        long nextCheck = 0;
+        while ( h > 0 ) {
+            if ( acc.size() >= k && read >= nextCheck ) {
+                // What all terms can still add
+                double remaining = 0;
+                for ( int i=0; i<h; i++ ) {
+                    remaining += next[heap[i]];
+                }
+                int[] top = top( acc, prior, priorWeight, k, remaining, remaining + priorMax, false );
+                if ( top != null ) {
+                    return top;
+                }
+                // Check again once as many postings are read as were ranked, so checking costs no more than reading
+                nextCheck = read + acc.size();
+            }
+
+            int t = heap[0];
+            int s = seg[t];
+            double v = next[t];
+            int from = (s == 0) ? 0 : ends[s-1];
+            int end = ends[s];
+            if ( v > 0 ) {
+                for ( int j=from; j<end; j++ ) {
+                    acc.add( docIDs[j], v );
+                }
+            } else {
+                // A document that only gets a score of 0 ranks by its docID, so
+                // only the first k documents of the segment that are new can get in
+                int added = 0;
+                for ( end=from; end<ends[s] && added<k; end++ ) {
+                    int size = acc.size();
+                    acc.add( docIDs[end], 0 );
+                    added += acc.size() - size;
+                }
+            }
+            read += end - from;
+            seg[t]++;
+            next[t] = value( termIDs[t], seg[t], weights[t] );
+            if ( seg[t] == start[termIDs[t] + 1] ) {
+                heap[0] = heap[--h];
+            }
+            siftDown( heap, h, 0, next );
+        }
+        return top( acc, prior, priorWeight, k, 0, 0, true );
+    }
+
+
+    /** Moves @code{heap[i]} down to its place in a max-heap of @code{n} terms by @code{key}. */
+    private static void siftDown( int[] heap, int n, int i, double[] key ) {
+        if ( i >= n ) {
+            return;
+        }
+        int t = heap[i];
+        for ( int c = 2*i + 1; c < n; c = 2*i + 1 ) {
+            if ( c + 1 < n && key[heap[c+1]] > key[heap[c]] ) {
+                c++;
+            }
+            if ( key[heap[c]] <= key[t] ) {
+                break;
+            }
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = t;
+    }
+
+
+    /**
+     *  Returns the docIDs of the top k documents so far, in increasing
+     *  order, if no document can still get in or out of the top k by
+     *  adding at most @code{remaining} to a document that has a score, or
+     *  @code{unseen} to one that has not. Returns null if the top k is not
+     *  settled yet, unless @code{done} is true.
+     */
+    private int[] top( ScoreAccumulator acc, double[] prior, double priorWeight, int k, double remaining, double unseen, boolean done ) {
+        TopDocs top = new TopDocs( k + 1 );
+        for ( int i=0; i<acc.size(); i++ ) {
+            int docID = acc.docID( i );
+            double score = acc.get( docID );
+            if ( prior != null && docID < prior.length ) {
+                score += priorWeight * prior[docID];
+            }
+            top.offer( docID, score );
+        }
+        PostingsList list = top.toList();
+        int n = Math.min( k, list.size() );
+        if ( !done ) {
+            double kth = list.get( n - 1 ).score;
+            double below = list.size() > k ? list.get( k ).score + remaining : 0;
+            if ( !(Math.max( below, unseen ) < kth) ) {
+                return null;
+            }
+        }
+        int[] result = new int[n];
+        for ( int i=0; i<n; i++ ) {
+            result[i] = list.get( i ).docID;
+        }
+        Arrays.sort( result );
+        return result;
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *   An index that is updated incrementally on top of a persistent index.
+ *
+ *   New and modified documents are indexed into small main-memory delta
+ *   segments, and documents that were deleted or replaced are marked in
+ *   a tombstone bitmap. Queries see the base index plus the deltas, with
+ *   the tombstoned documents masked out.
+ *
+ *   The deltas and the tombstones are saved next to the base index, so
+ *   the next update only has to look at what changed since. When they
+ *   grow past a threshold, a background merge folds them into the base.
+ *   The merge writes a new generation of the base index together with
+ *   the deltas and tombstones that are left, and switches to it with one
+ *   atomic rename (see @code{PersistentHashedIndex.replaceWith}), so the
+ *   folded deltas can never be read again on top of the merged base.
+ */
+public class IncrementalIndex implements Index {
+
+    /** The delta segments are stored in files with this prefix, followed by the segment number. */
+    public static final String DELTA_FNAME = "delta";
+
+    /** The tombstone bitmap file name */
+    public static final String TOMBSTONES_FNAME = "tombstones";
+
+    /** The segments file name (time of the last update, and number of documents in each delta). */
+    public static final String SEGMENTS_FNAME = "segments";
+
+    /** A new delta segment is started when the current one has this many documents. */
+    public static final int SEGMENT_DOCS = 1000;
+
+    /** The default number of changed documents that triggers a merge. */
+    public static final int DEFAULT_MERGE_THRESHOLD = 5000;
+
+    /** The persistent base index. */
+    PersistentHashedIndex base;
+
+    /** The delta segments, oldest first. */
+    ArrayList<HashedIndex> deltas = new ArrayList<HashedIndex>();
+
+    /** The number of documents in each delta segment. */
+    ArrayList<Integer> deltaDocs = new ArrayList<Integer>();
+
+    /** The deltas before this one are already saved on disk. */
+    int savedDeltas = 0;
+
+    /** The docIDs of deleted (or replaced) documents. */
+    BitSet tombstones = new BitSet();
+
+    /** Files modified after this time (in ms) have changed since the last update. */
+    long lastUpdate;
+
+    /** The time the current update started. */
+    long updateStarted;
+
+    /** The number of changed documents that triggers a merge. */
+    int mergeThreshold;
+
+    /** The docID of the document currently being inserted. */
+    private int currentDocID = -1;
+
+    /** The background merge, if one is running (guarded by the lock of this index). */
+    Thread merger;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Constructor. Loads the deltas and tombstones saved with the base index.
+     */
+    public IncrementalIndex( PersistentHashedIndex base ) {
+        this( base, DEFAULT_MERGE_THRESHOLD );
+    }
+
+    public IncrementalIndex( PersistentHashedIndex base, int mergeThreshold ) {
+        this.base = base;
+        this.mergeThreshold = mergeThreshold;
+        try {
+            load();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *  Reads the segments file, the delta segments and the tombstones.
+     *  Without a segments file, the base index was just built, and only
+     *  files modified after the base index was written have changed.
+     */
+    private void load() throws IOException {
+        File segments = new File( base.dir, SEGMENTS_FNAME );
+        if ( !segments.exists() ) {
+            lastUpdate = new File( base.dir, PersistentHashedIndex.DICTIONARY_FNAME ).lastModified();
+            return;
+        }
+        try ( BufferedReader br = new BufferedReader( new FileReader( segments ))) {
+            lastUpdate = Long.parseLong( br.readLine() );
+            String line;
+            while ((line = br.readLine()) != null) {
+                deltaDocs.add( Integer.parseInt( line ));
+            }
+        }
+        for ( int i=0; i<deltaDocs.size(); i++ ) {
+            HashedIndex delta = new HashedIndex();
+            PostingsRun.Reader reader = new PostingsRun.Reader( new File( base.dir, DELTA_FNAME + i ), i );
+            while ( reader.next() ) {
+                delta.putPostings( reader.term, reader.postings );
+            }
+            deltas.add( delta );
+        }
+        savedDeltas = deltas.size();
+        File file = new File( base.dir, TOMBSTONES_FNAME );
+        if ( file.exists() ) {
+            tombstones = BitSet.valueOf( java.nio.file.Files.readAllBytes( file.toPath() ));
+        }
+        System.err.println( "Loaded " + deltas.size() + " delta segments and " + tombstones.cardinality() + " tombstones" );
+    }
+
+
+    /**
+     *  Writes the unsaved deltas, the tombstones, the segments file and the
+     *  document info to disk.
+     */
+    private void save() throws IOException {
+        write( new File( base.dir ), 0, savedDeltas, tombstones );
+        savedDeltas = deltas.size();
+    }
+
+
+    /**
+     *  Writes the deltas from @code{first} on, renumbered from 0, the given
+     *  tombstones, the segments file and the document info to a directory.
+     *  The deltas before @code{unsaved} are already in the directory.
+     */
+    private void write( File dir, int first, int unsaved, BitSet dead ) throws IOException {
+        docs.write( new File( dir, PersistentHashedIndex.DOCINFO_FNAME ));
+        for ( int i=unsaved; i<deltas.size(); i++ ) {
+            HashedIndex delta = deltas.get( i );
+            HashMap<String,PostingsList> block = new HashMap<String,PostingsList>();
+            for ( String term : delta.terms() ) {
+                block.put( term, delta.getPostings( term ));
+            }
+            PostingsRun.write( new File( dir, DELTA_FNAME + (i - first) ), block );
+        }
+        try ( FileOutputStream out = new FileOutputStream( new File( dir, TOMBSTONES_FNAME ))) {
+            out.write( dead.toByteArray() );
+        }
+        try ( PrintWriter out = new PrintWriter( new FileWriter( new File( dir, SEGMENTS_FNAME )))) {
+            out.println( lastUpdate );
+            for ( int i=first; i<deltaDocs.size(); i++ ) {
+                out.println( deltaDocs.get( i ));
+            }
+        }
+    }
+
+
+    /**
+     *  Deletes the files of a generation of the base index that a merge
+     *  has replaced.
+     */
+    private void deleteGeneration( String old ) {
+        File dir = new File( old );
+        if ( old.equals( base.home )) {
+            // The first generation is in the index directory itself
+            String[] fnames = { PersistentHashedIndex.DICTIONARY_FNAME, PersistentHashedIndex.DATA_FNAME,
+                                PersistentHashedIndex.TERMS_FNAME, PersistentHashedIndex.DOCINFO_FNAME,
+                                PersistentHashedIndex.IMPACTS_FNAME, TOMBSTONES_FNAME, SEGMENTS_FNAME };
+            for ( String fname : fnames ) {
+                new File( dir, fname ).delete();
+            }
+            for ( int i=0; new File( dir, DELTA_FNAME + i ).delete(); i++ );
+        } else {
+            deleteFiles( dir );
+            dir.delete();
+        }
+    }
+
+
+    /** Deletes the files in a directory. */
+    private static void deleteFiles( File dir ) {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Marks the start of an update. Files modified after this time will be
+     *  picked up by the next update.
+     */
+    public void beginUpdate() {
+        updateStarted = System.currentTimeMillis();
+    }
+
+
+    /**
+     *  Returns the smallest docID that has never been used by this index.
+     */
+    public int nextDocID() {
+        return Math.max( tombstones.length(), docs.limit() );
+    }
+
+
+    /**
+     *  Deletes a document from the index.
+     */
+    public synchronized void delete( int docID ) {
+        tombstones.set( docID );
+        docs.remove( docID );
+    }
+
+
+    /**
+     *  Inserts this token in the current delta segment. A new segment is
+     *  started when the current one is full, or has been saved.
+     */
+    public synchronized void insert( String token, int docID, int offset ) {
+        if ( docID != currentDocID ) {
+            currentDocID = docID;
+            int last = deltas.size() - 1;
+            if ( last < savedDeltas || deltaDocs.get( last ) >= SEGMENT_DOCS ) {
+                deltas.add( new HashedIndex() );
+                deltaDocs.add( 0 );
+                last++;
+            }
+            deltaDocs.set( last, deltaDocs.get( last ) + 1 );
+        }
+        deltas.get( deltas.size()-1 ).insert( token, docID, offset );
+    }
+
+
+    /**
+     *  Returns the postings for a specific term from the base index and all
+     *  deltas, without tombstoned documents, or null if the term is not in
+     *  the index.
+     */
+    public synchronized PostingsList getPostings( String token ) {
+        if ( deltas.isEmpty() && tombstones.isEmpty() ) {
+            return base.getPostings( token );
+        }
+        PostingsList result = new PostingsList();
+        addLive( result, base.getPostings( token ), tombstones );
+        for ( HashedIndex delta : deltas ) {
+            addLive( result, delta.getPostings( token ), tombstones );
+        }
+        return result.size() > 0 ? result : null;
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a specific term. Before the
+     *  first change, the cursor walks through the base index directly.
+     */
+    public synchronized PostingsCursor cursor( String token ) {
+        if ( deltas.isEmpty() && tombstones.isEmpty() ) {
+            return base.cursor( token );
+        }
+        PostingsList postings = getPostings( token );
+        return postings == null ? null : postings.cursor();
+    }
+
+
+    /**
+     *  Returns the score bounds of a specific term. They are only known
+     *  before the first change, since the deltas keep no bounds.
+     */
+    public synchronized ScoreBounds scoreBounds( String token ) {
+        if ( deltas.isEmpty() && tombstones.isEmpty() ) {
+            return base.scoreBounds( token );
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns the number of documents containing a term.
+     */
+    public synchronized int docFrequency( String token ) {
+        if ( deltas.isEmpty() && tombstones.isEmpty() ) {
+            return base.docFrequency( token );
+        }
+        PostingsList postings = getPostings( token );
+        return postings == null ? 0 : postings.size();
+    }
+
+
+    /**
+     *  Appends the entries of @code{postings} whose documents are not
+     *  tombstoned. The deltas hold larger docIDs than the base, and newer
+     *  deltas larger than older ones, so appending keeps the docID order.
+     */
+    private static void addLive( PostingsList result, PostingsList postings, BitSet dead ) {
+        if ( postings == null ) {
+            return;
+        }
+        for ( int i=0; i<postings.size(); i++ ) {
+            PostingsEntry e = postings.get( i );
+            if ( !dead.get( e.docID )) {
+                result.addEntry( e );
+            }
+        }
+    }
+
+
+    /**
+     *  Computes the norms of the documents from the base index and the
+     *  deltas, without the tombstoned documents. Every change drops the
+     *  norms (see @code{DocTable}), and without them tf-idf ranking falls
+     *  back to the lengths of the documents.
+     */
+    private void computeNorms() {
+        DocTable.Norms norms = new DocTable.Norms( docs );
+        TreeSet<String> terms = new TreeSet<String>();
+        synchronized ( this ) {
+            terms.addAll( base.readTerms() );
+            for ( HashedIndex delta : deltas ) {
+                terms.addAll( delta.terms() );
+            }
+        }
+        for ( String term : terms ) {
+            PostingsCursor cursor = cursor( term );
+            if ( cursor != null ) {
+                norms.add( cursor );
+            }
+        }
+        if ( !norms.set() ) {
+            System.err.println( "Warning: the documents changed while their norms were computed" );
+        }
+    }
+
+
+    /**
+     *  Computes the norms of the documents if a change dropped them, saves
+     *  the deltas and tombstones, and starts a background merge if they
+     *  have grown past the threshold.
+     */
+    public void cleanup() {
+        if ( !docs.hasNorms() ) {
+            computeNorms();
+        }
+        Thread start = null;
+        synchronized ( this ) {
+            if ( updateStarted > 0 ) {
+                lastUpdate = updateStarted;
+            }
+            try {
+                save();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+            int changed = tombstones.cardinality();
+            for ( int docs : deltaDocs ) {
+                changed += docs;
+            }
+            if ( changed > mergeThreshold && merger == null ) {
+                merger = start = new Thread( this::merge );
+            }
+        }
+        if ( start != null ) {
+            start.start();
+        }
+    }
+
+
+    /**
+     *  Folds the deltas into the base index, and drops the tombstoned
+     *  documents. The new base is written to the directory of the next
+     *  generation while queries keep using the old base and the deltas.
+     *  The deltas and tombstones that were not folded, and the document
+     *  info, are then written next to it, and the new generation is
+     *  switched to at once.
+     */
+    void merge() {
+        int folded;
+        ArrayList<HashedIndex> segments;
+        BitSet dead;
+        synchronized ( this ) {
+            folded = deltas.size();
+            segments = new ArrayList<HashedIndex>( deltas );
+            dead = (BitSet)tombstones.clone();
+        }
+        System.err.println( "Merging " + folded + " delta segments into the index..." );
+
+        TreeSet<String> terms = new TreeSet<String>( base.readTerms() );
+        for ( HashedIndex delta : segments ) {
+            terms.addAll( delta.terms() );
+        }
+        File mergeDir = base.nextGeneration();
+        // Left over from a merge that did not finish
+        deleteFiles( mergeDir );
+        mergeDir.mkdirs();
+        PersistentHashedIndex merged = new PersistentHashedIndex( mergeDir.getPath(), base.blockBudget );
+        try {
+            merged.beginWrite();
+            for ( String term : terms ) {
+                PostingsList postings = new PostingsList();
+                addLive( postings, base.getPostings( term ), dead );
+                for ( HashedIndex delta : segments ) {
+                    addLive( postings, delta.getPostings( term ), dead );
+                }
+                if ( postings.size() > 0 ) {
+                    merged.writeTerm( term, postings );
+                }
+            }
+            merged.endWrite();
+
+            synchronized ( this ) {
+                BitSet live = (BitSet)tombstones.clone();
+                live.andNot( dead );
+                write( mergeDir, folded, folded, live );
+                String old = base.dir;
+                base.replaceWith( merged );
+                deltas.subList( 0, folded ).clear();
+                deltaDocs.subList( 0, folded ).clear();
+                savedDeltas = deltas.size();
+                tombstones = live;
+                deleteGeneration( old );
+            }
+            if ( !docs.hasNorms() ) {
+                // Documents changed during the merge, so the norms of the
+                // merged base do not hold for them
+                computeNorms();
+                synchronized ( this ) {
+                    save();
+                }
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return;
+        } finally {
+            synchronized ( this ) {
+                merger = null;
+            }
+        }
+        System.err.println( "Merge done: " + merged.termsWritten + " unique words" );
+    }
+}
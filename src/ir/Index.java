@@ -7,7 +7,6 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -16,11 +15,8 @@ import java.util.Iterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
-    
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    /** The names and lengths of the documents, by document identifier. */
+    public DocTable docs = new DocTable();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
@@ -28,6 +24,32 @@ public interface Index {
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns a cursor over the postings of a given term, or null if the
+     *  term is not in the index. An index that can walk through its
+     *  postings without building a PostingsList should do so.
+     */
+    public default PostingsCursor cursor( String token ) {
+        PostingsList postings = getPostings( token );
+        return postings == null ? null : postings.cursor();
+    }
+
+    /**
+     *  Returns upper bounds of the impacts of the postings of a given term
+     *  (see @code{ScoreBounds}), or null if the term is not in the index
+     *  or the index keeps no bounds. Without bounds, ranked retrieval
+     *  scores every document.
+     */
+    public default ScoreBounds scoreBounds( String token ) {
+        return null;
+    }
+
+    /** Returns the number of documents containing a given term. */
+    public default int docFrequency( String token ) {
+        PostingsList postings = getPostings( token );
+        return postings == null ? 0 : postings.size();
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
@@ -9,6 +9,7 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.charset.*;
 
 
@@ -29,6 +30,18 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** Read the files through memory mapping (using MappedTokenizer). */
+    boolean mapped_tokenizer = false;
+
+    /** The terms seen so far, and their IDs. */
+    private Lexicon terms;
+
+    /** The index, if it is a main-memory index keyed by the IDs of @code{terms}. */
+    private HashedIndex termIndex;
+
+    /** The term strings by ID, for an index that is keyed by strings (each created once). */
+    private String[] termStrings = new String[0];
+
 
     /* ----------------------------------------------- */
 
@@ -38,6 +51,16 @@ public class Indexer {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        // Share the lexicon of the indexes, so that a term is looked up
+        // only once per token
+        if ( index instanceof HashedIndex ) {
+            terms = ((HashedIndex)index).lexicon;
+            termIndex = (HashedIndex)index;
+        } else if ( kgIndex != null ) {
+            terms = kgIndex.lexicon;
+        } else {
+            terms = new Lexicon();
+        }
     }
 
 
@@ -68,26 +91,309 @@ public class Indexer {
                     // First register the document and get a docID
                     int docID = generateDocID();
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                        }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
+                    indexFile( f, docID );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Opens a tokenizer on the file @code{f}.
+     */
+    private Tokenizer openTokenizer( File f ) throws IOException {
+        if ( mapped_tokenizer ) {
+            return new MappedTokenizer( f, true, false, true, patterns_file );
+        }
+        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+        return new Tokenizer( reader, true, false, true, patterns_file );
+    }
+
+
+    /**
+     *  Tokenizes the file @code{f} and indexes it under the given docID.
+     */
+    private void indexFile( File f, int docID ) {
+        try {
+            Tokenizer tok = openTokenizer( f );
+            int offset = 0;
+            while ( tok.hasMoreTokens() ) {
+                insertIntoIndex( docID, addTerm( tok.nextTokenView() ), offset++ );
+            }
+            index.docs.put( docID, f.getPath(), offset );
+            tok.close();
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing." );
+        }
+    }
+
+
+    /**
+     *  Brings the incremental index up to date with the files below the
+     *  given directories. Only files that are new or were modified since the
+     *  last update are indexed; the documents of modified and removed files
+     *  are deleted from the index.
+     */
+    public void updateFiles( ArrayList<String> dirNames, IncrementalIndex idx ) {
+        idx.beginUpdate();
+        lastDocID = Math.max( lastDocID, idx.nextDocID() );
+        HashMap<String,Integer> known = new HashMap<String,Integer>();
+        for ( int docID=0; docID<index.docs.limit(); docID++ ) {
+            if ( index.docs.contains( docID )) {
+                known.put( index.docs.name( docID ), docID );
+            }
+        }
+
+        ArrayList<File> files = new ArrayList<File>();
+        for ( String dirName : dirNames ) {
+            collectFiles( new File( dirName ), files );
+        }
+        int added = 0, modified = 0;
+        for ( File f : files ) {
+            Integer docID = known.remove( f.getPath() );
+            if ( docID != null ) {
+                if ( f.lastModified() <= idx.lastUpdate ) {
+                    continue;
+                }
+                idx.delete( docID );
+                modified++;
+            } else {
+                added++;
+            }
+            indexFile( f, generateDocID() );
+        }
+        // The files of the remaining documents are gone.
+        for ( int docID : known.values() ) {
+            idx.delete( docID );
+        }
+        System.err.println( "Update: " + added + " new, " + modified + " modified, " + known.size() + " removed files" );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A worker of the parallel indexer. Takes files from the shared list,
+     *  and indexes them into its own private shard.
+     */
+    private class IndexShard extends Thread {
+
+        /** The files to be indexed, in the order of the directory walk. */
+        ArrayList<File> files;
+
+        /** Index into @code{files} of the next file to be taken by any worker. */
+        AtomicInteger nextFile;
+
+        /** The docID given to the first file in @code{files}. */
+        int firstDocID;
+
+        /** The private index shard of this worker. */
+        HashedIndex shard = new HashedIndex();
+
+
+        /** Names and lengths of the documents indexed by this worker. */
+        DocTable docs = new DocTable();
+
+        /** What stopped this worker before all files were read, or null. */
+        volatile Throwable failure;
+
+        IndexShard( ArrayList<File> files, AtomicInteger nextFile, int firstDocID ) {
+            this.files = files;
+            this.nextFile = nextFile;
+            this.firstDocID = firstDocID;
+        }
+
+        public void run() {
+            try {
+                indexFiles();
+            } catch ( RuntimeException | Error e ) {
+                failure = e;
+                // The index cannot be complete, so the other workers stop too
+                nextFile.set( files.size() );
+            }
+        }
+
+        private void indexFiles() {
+            int i;
+            while ( (i = nextFile.getAndIncrement()) < files.size() ) {
+                // The docID is given out together with the file, so every file
+                // gets the same docID as in the single-threaded walk.
+                int docID = firstDocID + i;
+                File f = files.get( i );
+                if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                try {
+                    Tokenizer tok = openTokenizer( f );
+                    int offset = 0;
+                    while ( tok.hasMoreTokens() ) {
+                        shard.insert( shard.lexicon.add( tok.nextTokenView() ), docID, offset++ );
                     }
+                    docs.put( docID, f.getPath(), offset );
+                    tok.close();
+                } catch ( IOException e ) {
+                    System.err.println( "Warning: IOException during indexing." );
                 }
             }
         }
     }
 
 
+    /**
+     *  Collects the readable files below @code{f} in the same order as
+     *  @code{processFiles} visits them.
+     */
+    private void collectFiles( File f, ArrayList<File> files ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        collectFiles( new File( f, fs[i] ), files );
+                    }
+                }
+            } else {
+                files.add( f );
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes and indexes all files below @code{f} using @code{numThreads}
+     *  worker threads. Every worker builds its own index shard, and the shards
+     *  are merged into the index when all files have been read. The resulting
+     *  index is identical to the one built by @code{processFiles}.
+     *
+     *  The workers are always waited for, also if the calling thread is
+     *  interrupted (it is interrupted again afterwards). If a worker fails,
+     *  nothing is merged, and its exception is thrown once all workers
+     *  have stopped.
+     */
+    public void processFilesParallel( File f, int numThreads ) {
+        ArrayList<File> files = new ArrayList<File>();
+        collectFiles( f, files );
+
+        AtomicInteger nextFile = new AtomicInteger( 0 );
+        IndexShard[] workers = new IndexShard[numThreads];
+        for ( int i=0; i<numThreads; i++ ) {
+            workers[i] = new IndexShard( files, nextFile, lastDocID );
+            workers[i].start();
+        }
+        boolean interrupted = false;
+        for ( IndexShard worker : workers ) {
+            while ( worker.isAlive() ) {
+                try {
+                    worker.join();
+                } catch ( InterruptedException e ) {
+                    // The shards are still being written, so wait for them anyway
+                    interrupted = true;
+                }
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+        for ( IndexShard worker : workers ) {
+            Throwable failure = worker.failure;
+            if ( failure instanceof RuntimeException ) {
+                throw (RuntimeException)failure;
+            } else if ( failure instanceof Error ) {
+                throw (Error)failure;
+            }
+        }
+        lastDocID += files.size();
+        mergeShards( workers );
+    }
+
+
+    /**
+     *  Merges the shards of the parallel indexer into the index.
+     *
+     *  The terms are inserted in the order of their first occurrence in the
+     *  corpus, and the postings of each term in docID order, so that both
+     *  the index and the k-gram index (including its term ids) come out
+     *  exactly as if the files had been indexed one by one.
+     *
+     *  The postings of a term in each shard are sorted by docID, and the
+     *  docIDs of different shards are disjoint, so the postings of the
+     *  shards are merged in one pass and handed to the index at once.
+     */
+    private void mergeShards( IndexShard[] workers ) {
+        for ( IndexShard worker : workers ) {
+            index.docs.putAll( worker.docs );
+        }
+
+        // The first occurrence of every term, as docID in the high and
+        // offset in the low 32 bits.
+        HashMap<String,Long> firstOccurrence = new HashMap<String,Long>();
+        for ( IndexShard worker : workers ) {
+            Lexicon shardTerms = worker.shard.lexicon;
+            for ( int id=0; id<shardTerms.size(); id++ ) {
+                long occurrence = worker.shard.firstOccurrence( id );
+                if ( occurrence < 0 ) {
+                    continue;
+                }
+                String term = shardTerms.term( id );
+                Long seen = firstOccurrence.get( term );
+                if ( seen == null || occurrence < seen ) {
+                    firstOccurrence.put( term, occurrence );
+                }
+            }
+        }
+        ArrayList<Map.Entry<String,Long>> terms = new ArrayList<Map.Entry<String,Long>>( firstOccurrence.entrySet() );
+        terms.sort( Map.Entry.comparingByValue() );
+        firstOccurrence = null;
+
+        PostingsList[] lists = new PostingsList[workers.length];
+        for ( Map.Entry<String,Long> t : terms ) {
+            String term = t.getKey();
+            int termID = addTerm( term );
+            int n = 0;
+            for ( IndexShard worker : workers ) {
+                // Each shard is dropped term by term, so that the shards and
+                // the merged index are never both in memory in full.
+                PostingsList postings = worker.shard.remove( term );
+                if ( postings != null ) {
+                    lists[n++] = postings;
+                }
+            }
+            if ( n > 0 ) {
+                insertIntoIndex( termID, mergeByDocID( lists, n ));
+            }
+        }
+    }
+
+
+    /**
+     *  Merges the first @code{n} postings lists, which are sorted by docID
+     *  and have disjoint docIDs, into one list sorted by docID.
+     */
+    private static PostingsList mergeByDocID( PostingsList[] lists, int n ) {
+        if ( n == 1 ) {
+            return lists[0];
+        }
+        int size = 0;
+        for ( int i=0; i<n; i++ ) {
+            size += lists[i].size();
+        }
+        ArrayList<PostingsEntry> merged = new ArrayList<PostingsEntry>( size );
+        int[] next = new int[n];
+        // There are only as many lists as workers, so the smallest docID is found by a scan
+        while ( merged.size() < size ) {
+            int best = -1;
+            for ( int i=0; i<n; i++ ) {
+                if ( next[i] < lists[i].size() &&
+                     (best < 0 || lists[i].get( next[i] ).docID < lists[best].get( next[best] ).docID )) {
+                    best = i;
+                }
+            }
+            merged.add( lists[best].get( next[best]++ ));
+        }
+        return new PostingsList( merged );
+    }
+
+
     /* ----------------------------------------------- */
 
 
@@ -95,9 +401,64 @@ public class Indexer {
      *  Indexes one token.
      */
     public void insertIntoIndex( int docID, String token, int offset ) {
-        index.insert( token, docID, offset );
-        if (kgIndex != null)
-            kgIndex.insert(token);
+        insertIntoIndex( docID, addTerm( token ), offset );
+    }
+
+
+    /**
+     *  Indexes one occurrence of the term with this ID.
+     */
+    private void insertIntoIndex( int docID, int termID, int offset ) {
+        if ( termIndex != null ) {
+            termIndex.insert( termID, docID, offset );
+        } else {
+            if ( termID >= termStrings.length ) {
+                termStrings = Arrays.copyOf( termStrings, Math.max( 2*termStrings.length, termID+1 ));
+            }
+            String term = termStrings[termID];
+            if ( term == null ) {
+                term = terms.term( termID );
+                termStrings[termID] = term;
+            }
+            index.insert( term, docID, offset );
+        }
+    }
+
+
+    /**
+     *  Indexes the postings of the term with this ID, whose docIDs all come
+     *  after those already in the index.
+     */
+    private void insertIntoIndex( int termID, PostingsList postings ) {
+        if ( termIndex != null ) {
+            termIndex.append( termID, postings );
+        } else if ( index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex)index).insert( terms.term( termID ), postings );
+        } else {
+            for ( PostingsEntry e : postings.list ) {
+                for ( int i=0; i<e.size(); i++ ) {
+                    insertIntoIndex( e.docID, termID, e.get( i ));
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the ID of a term in the lexicon. A term that is new is also
+     *  added to the k-gram index, which is not touched by later occurrences.
+     */
+    private int addTerm( CharSequence token ) {
+        int n = terms.size();
+        int termID = terms.add( token );
+        if ( termID == n && kgIndex != null ) {
+            if ( kgIndex.lexicon == terms ) {
+                kgIndex.insert( termID );
+            } else {
+                kgIndex.insert( terms.term( termID ));
+            }
+        }
+        return termID;
     }
 }
 
@@ -15,37 +15,32 @@ import ir.Query.QueryTerm;
 
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();//original token, not the extended one
-
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+    /** The terms and their ids (possibly shared with the inverted index) */
+    final Lexicon lexicon;
 
     /** Index from k-grams to list of term ids that contain the k-gram */
     HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
-
     /** Number of symbols to form a K-gram */
     int K = 3;
 
-    /** add: Mapping from term strings to the number of its k-grams  */
-    HashMap<String, Integer> term2kgNum = new HashMap<String, Integer>();
+    /** add: The number of k-grams of every term, by term id (0 if the term is not in this index) */
+    int[] kgNum = new int[1 << 13];
 
     public KGramIndex(int k) {
+        this(k, new Lexicon());
+    }
+
+    /** Constructor for a k-gram index that uses the term ids of @code{lexicon} */
+    public KGramIndex(int k, Lexicon lexicon) {
         K = k;
+        this.lexicon = lexicon;
         if (k <= 0) {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
@@ -128,21 +123,24 @@ public class KGramIndex {
 
     /** Inserts all k-grams from a token into the index. */
     public void insert( String token ) {
+        insert(lexicon.add(token));
+    }
+
+    /** Inserts all k-grams from the term with this id (in the lexicon) into the index. */
+    public void insert( int id ) {
         // if the token has been indexed, return
-        if (term2id.containsKey(token)) {
+        if (id < kgNum.length && kgNum[id] > 0) {
             return;
         }
-
-        // use generateTermID() to get the next id(+1), add the token to term2id and id2term
-        int id = generateTermID();
-        id2term.put(id, token);
-        term2id.put(token, id);
+        if (id >= kgNum.length) {
+            kgNum = Arrays.copyOf(kgNum, Math.max(2 * kgNum.length, id + 1));
+        }
 
         KGramPostingsEntry newEntry = new KGramPostingsEntry(id);
-        String extended_token = "^".concat(token).concat("$");
+        String extended_token = "^".concat(lexicon.term(id)).concat("$");
 
         int numOfGrams = extended_token.length() - K + 1;
-        term2kgNum.put(token, numOfGrams);
+        kgNum[id] = Math.max(numOfGrams, 1);
 
         for (int i = 0; i < numOfGrams; i++) {
             String t_kgram = extended_token.substring(i, i + K);
@@ -150,9 +148,16 @@ public class KGramIndex {
 
             // If this k-gram is already in the k-gram index
             if (entrys != null) {
-                // a k-gram may occur many times in one token
-                if (!entrys.contains(newEntry)) {
+                // The lists are sorted by id. Terms are mostly inserted in
+                // id order, and a k-gram may occur many times in one token.
+                int last = entrys.get(entrys.size() - 1).tokenID;
+                if (id > last) {
                     entrys.add(newEntry);
+                } else if (id < last) {
+                    int pos = Collections.binarySearch(entrys, newEntry, Comparator.comparingInt((KGramPostingsEntry e) -> e.tokenID));
+                    if (pos < 0) {
+                        entrys.add(-pos - 1, newEntry);
+                    }
                 }
             } else {
                 entrys = new ArrayList();
@@ -171,14 +176,15 @@ public class KGramIndex {
         return null;
     }
 
-    /** Get id of a term */
+    /** Get id of a term, or null if the term is not in this index */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int id = lexicon.id(term);
+        return (id >= 0 && id < kgNum.length && kgNum[id] > 0) ? id : null;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return lexicon.term(id);
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
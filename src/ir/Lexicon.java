@@ -0,0 +1,171 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *  The terms seen by the indexer, each with a dense integer ID.
+ *
+ *  A term gets the next free ID (0, 1, 2, ...) the first time it is
+ *  added, and keeps it. The indexer adds every token it reads, looked up
+ *  by its characters, so no String is created per token. One lexicon
+ *  can be shared by the inverted index and the k-gram index, which then
+ *  both keep their data in arrays indexed by term ID.
+ *
+ *  The characters of all terms are kept one after the other in a single
+ *  char array, so a term costs its characters and a few ints, and no
+ *  String object. A String is created when a term is asked for.
+ *
+ *  A lexicon is not thread-safe; every indexing thread keeps its own.
+ */
+public class Lexicon {
+
+    /** The ID + 1 of the term in every slot of an open-addressing table with linear probing, 0 for an empty slot. */
+    private int[] table = new int[1 << 14];
+
+    /** The characters of all terms, in ID order. */
+    private char[] chars = new char[1 << 16];
+
+    /** The start of every term in @code{chars}, by ID; the term ends where the next one starts. */
+    private int[] starts = new int[(1 << 13) + 1];
+
+    /** The String hash codes of the terms, by ID. */
+    private int[] hashes = new int[1 << 13];
+
+    /** The number of terms. */
+    private int size = 0;
+
+
+    /**
+     *  Returns the ID of the term @code{s}, adding the term if it is new.
+     */
+    public int add( CharSequence s ) {
+        int h = hash( s );
+        int mask = table.length - 1;
+        int i = mix( h ) & mask;
+        int id;
+        while ( (id = table[i] - 1) >= 0 ) {
+            if ( hashes[id] == h && equals( id, s )) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        id = size++;
+        if ( id == hashes.length ) {
+            hashes = Arrays.copyOf( hashes, 2*hashes.length );
+            starts = Arrays.copyOf( starts, hashes.length + 1 );
+        }
+        int start = starts[id];
+        int n = s.length();
+        if ( start + n > chars.length ) {
+            chars = Arrays.copyOf( chars, Math.max( 2*chars.length, start + n ));
+        }
+        for ( int j=0; j<n; j++ ) {
+            chars[start + j] = s.charAt( j );
+        }
+        starts[id + 1] = start + n;
+        hashes[id] = h;
+        table[i] = id + 1;
+        if ( size > table.length / 2 ) {
+            grow();
+        }
+        return id;
+    }
+
+
+    /**
+     *  Returns the ID of the term @code{s}, or -1 if it has not been added.
+     */
+    public int id( CharSequence s ) {
+        int h = hash( s );
+        int mask = table.length - 1;
+        int i = mix( h ) & mask;
+        int id;
+        while ( (id = table[i] - 1) >= 0 ) {
+            if ( hashes[id] == h && equals( id, s )) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+
+    /** Returns the term with the given ID. */
+    public String term( int id ) {
+        return new String( chars, starts[id], starts[id + 1] - starts[id] );
+    }
+
+
+    /** The number of terms, which is also the next ID to be given out. */
+    public int size() {
+        return size;
+    }
+
+
+    /** Computes the same hash code as @code{String.hashCode}. */
+    static int hash( CharSequence s ) {
+        int h = 0;
+        for ( int i=0; i<s.length(); i++ ) {
+            h = 31*h + s.charAt( i );
+        }
+        return h;
+    }
+
+
+    /** Spreads the bits of a String hash code, which are poor in the low bits for short strings. */
+    static int mix( int h ) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    /** Compares the term with the given ID to @code{s}. */
+    private boolean equals( int id, CharSequence s ) {
+        int start = starts[id];
+        int n = starts[id + 1] - start;
+        if ( n != s.length() ) {
+            return false;
+        }
+        char[] c = chars;
+        for ( int i=0; i<n; i++ ) {
+            if ( c[start + i] != s.charAt( i )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    static boolean equals( String t, CharSequence s ) {
+        int n = t.length();
+        if ( n != s.length() ) {
+            return false;
+        }
+        for ( int i=0; i<n; i++ ) {
+            if ( t.charAt( i ) != s.charAt( i )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /** Doubles the size of the table. */
+    private void grow() {
+        table = new int[2*table.length];
+        int mask = table.length - 1;
+        for ( int id=0; id<size; id++ ) {
+            int i = mix( hashes[id] ) & mask;
+            while ( table[i] != 0 ) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *   A file mapped read-only into memory.
+ *
+ *   A single mapping cannot be larger than 2 GB, so the file is mapped in
+ *   chunks of @code{CHUNK_SIZE} bytes. Reads use absolute positions only,
+ *   and never change the state of the mappings, so any number of threads
+ *   can read at the same time without locking. The mappings stay valid
+ *   after the file has been closed.
+ */
+public class MappedFile {
+
+    /** The size of every chunk but the last one. */
+    static final int CHUNK_SIZE = 1 << 30;
+
+    /** The chunks of the file. */
+    private final ByteBuffer[] chunks;
+
+    /** The length of the file. */
+    private final long length;
+
+
+    /**
+     *  Maps the whole file into memory.
+     */
+    public MappedFile( File file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            length = channel.size();
+            chunks = new ByteBuffer[(int)((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for ( int i=0; i<chunks.length; i++ ) {
+                long start = (long)i * CHUNK_SIZE;
+                chunks[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( CHUNK_SIZE, length - start ));
+            }
+        }
+    }
+
+
+    /** The length of the file. */
+    public long length() {
+        return length;
+    }
+
+
+    /**
+     *  Copies @code{len} bytes from position @code{pos} of the file to
+     *  @code{dst[off..off+len)}.
+     *
+     *  @throws IndexOutOfBoundsException if the bytes are not all in the file.
+     */
+    public void read( long pos, byte[] dst, int off, int len ) {
+        if ( pos < 0 || pos + len > length ) {
+            throw new IndexOutOfBoundsException( "Read of " + len + " bytes at " + pos + " in a file of " + length );
+        }
+        while ( len > 0 ) {
+            ByteBuffer chunk = chunks[(int)(pos / CHUNK_SIZE)];
+            int start = (int)(pos % CHUNK_SIZE);
+            int n = Math.min( len, chunk.limit() - start );
+            chunk.get( start, dst, off, n );
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *  A tokenizer that maps a UTF-8 encoded file into memory and works
+ *  directly on its bytes.
+ *
+ *  ASCII bytes are classified, case folded and split through a lookup
+ *  table; only non-ASCII sequences are decoded. The tokens are exactly
+ *  those produced by @code{Tokenizer} on the same file.
+ */
+public class MappedTokenizer extends Tokenizer {
+
+    /** The bytes of the file. */
+    ByteBuffer bytes;
+
+    /** The current position in @code{bytes}. */
+    int pos = 0;
+
+    /** The (normalized) characters of the current token. */
+    char[] token = new char[64];
+
+    /** The number of characters in @code{token}. */
+    int token_length = 0;
+
+    /** @code{true} when the end of input has been reached. */
+    boolean at_end = false;
+
+    /**
+     *  The normalized counterpart of every ASCII character, or 0 if the
+     *  character cannot occur in a token.
+     */
+    final char[] ascii_map = new char[128];
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Constructor
+     *  @param file The file to be tokenized.
+     *  For the remaining parameters, see @code{Tokenizer}.
+     */
+    public MappedTokenizer( File file, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) throws IOException {
+        super( null, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            bytes = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        for ( char c=0; c<128; c++ ) {
+            if ( c >= 'A' && c <= 'Z' ) {
+                ascii_map[c] = case_folding ? (char)(c + 'a' - 'A') : c;
+            } else if ( c >= '!' && c <= '~' ) {
+                ascii_map[c] = c;
+            }
+        }
+    }
+
+
+    /**
+     *  Releases the mapping of the file.
+     */
+    public void close() {
+        bytes = null;
+    }
+
+
+    /**
+     *  Reads tokens until at least one has been added to the queue.
+     *
+     *  @return @code{false} if the end of input has been reached.
+     */
+    boolean readTokens() {
+        if ( at_end ) {
+            return false;
+        }
+        ByteBuffer b = bytes;
+        int limit = b.limit();
+        while ( pos < limit ) {
+            int c = b.get( pos );
+            if ( c > 0 ) {
+                // ASCII fast path
+                pos++;
+                char n = ascii_map[c];
+                if ( n != 0 ) {
+                    append( n );
+                } else if ( endToken() ) {
+                    return true;
+                }
+            } else if ( c == 0 ) {
+                // Like Tokenizer, stop at a NUL character
+                break;
+            } else {
+                char n = decode( b, limit );
+                if ( n != 0 ) {
+                    append( n );
+                } else if ( endToken() ) {
+                    return true;
+                }
+            }
+        }
+        // We have reached end of input. Like Tokenizer, a token that runs
+        // into the end of input is not emitted.
+        at_end = true;
+        return false;
+    }
+
+
+    /**
+     *  Decodes the non-ASCII UTF-8 sequence at @code{pos}, and advances past it.
+     *
+     *  @return The normalized character, or 0 if it cannot occur in a token.
+     *  Malformed sequences and characters outside the Basic Multilingual Plane
+     *  are never part of a token (as in @code{Tokenizer}, which sees them as
+     *  replacement characters and surrogates).
+     */
+    private char decode( ByteBuffer b, int limit ) {
+        int lead = b.get( pos ) & 0xff;
+        int cp;
+        int len;
+        int min;
+        if ( lead >= 0xc2 && lead <= 0xdf ) {
+            cp = lead & 0x1f;
+            len = 2;
+            min = 0x80;
+        } else if ( lead >= 0xe0 && lead <= 0xef ) {
+            cp = lead & 0x0f;
+            len = 3;
+            min = 0x800;
+        } else {
+            // A continuation byte, a four-byte sequence or an invalid byte.
+            // None of the following bytes can start a token character, as
+            // they are all continuation bytes.
+            pos++;
+            return 0;
+        }
+        if ( pos + len > limit ) {
+            pos++;
+            return 0;
+        }
+        for ( int i=1; i<len; i++ ) {
+            int cont = b.get( pos + i ) & 0xff;
+            if ( (cont & 0xc0) != 0x80 ) {
+                pos++;
+                return 0;
+            }
+            cp = (cp << 6) | (cont & 0x3f);
+        }
+        pos++;
+        if ( cp < min || (cp >= 0xd800 && cp <= 0xdfff) ) {
+            return 0;
+        }
+        pos += len - 1;
+        char ch = (char)cp;
+        if ( !Character.isLetter( ch )) {
+            return 0;
+        }
+        if ( remove_diacritics && ch >= '\u00c0' && ch <= '\u017e' ) {
+            ch = SPECIAL_CHAR_MAPPING[ch-'\u00c0'];
+        }
+        if ( case_folding ) {
+            ch = Character.toLowerCase( ch );
+        }
+        return ch;
+    }
+
+
+    /** Appends a character to the current token. */
+    private void append( char c ) {
+        if ( token_length == token.length ) {
+            char[] bigger = new char[2*token.length];
+            System.arraycopy( token, 0, bigger, 0, token_length );
+            token = bigger;
+        }
+        token[token_length++] = c;
+    }
+
+
+    /**
+     *  Ends the current token, if any, and adds it to the queue.
+     *
+     *  @return @code{true} if tokens were added to the queue.
+     */
+    private boolean endToken() {
+        if ( token_length == 0 ) {
+            return false;
+        }
+        int length = token_length;
+        token_length = 0;
+        return addTokensToQueue( token, 0, length );
+    }
+}
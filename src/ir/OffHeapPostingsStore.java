@@ -0,0 +1,425 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   Keeps the postings outside the Java heap, in large direct buffers
+ *   (slabs), so that the garbage collector never has to trace them.
+ *
+ *   The postings of a term are the same ints as in HeapPostingsStore
+ *   (docID, number of positions, positions, for every document), written
+ *   into a chain of blocks. The first block of a term holds 4 ints, and
+ *   every next block twice as many, up to 1024. The last int of a full
+ *   block holds the address of the next one. An address is the number of
+ *   an int counted over all slabs.
+ *
+ *   Only a few ints per term are kept on the heap, and a skip table for
+ *   the terms with more than @code{SKIP_INTERVAL} documents: the docID of
+ *   every @code{SKIP_INTERVAL}th document and where it starts in the
+ *   chain of blocks, so that a cursor can jump ahead to a docID without
+ *   reading all the documents before it. The space of dropped postings
+ *   is not reused.
+ */
+public class OffHeapPostingsStore implements PostingsStore {
+
+    /** A slab holds 2^SLAB_SHIFT ints. */
+    static final int SLAB_SHIFT = 22;
+
+    static final int SLAB_INTS = 1 << SLAB_SHIFT;
+
+    static final int SLAB_MASK = SLAB_INTS - 1;
+
+    /** The number of ints of a block, by level (the level of the first block is 0). */
+    static final int[] BLOCK_SIZE = { 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+    /** The slabs. */
+    private IntBuffer[] slabs = new IntBuffer[0];
+
+    /** The address of the first free int. */
+    private int free = 0;
+
+    /** The address of the first block of every term, by term ID. */
+    private int[] head = new int[1 << 13];
+
+    /** The address where the next int of every term is written. */
+    private int[] write = new int[1 << 13];
+
+    /** The address of the last int (the pointer to the next block) of the current block of every term. */
+    private int[] end = new int[1 << 13];
+
+    /** The level of the current block of every term. */
+    private byte[] level = new byte[1 << 13];
+
+    /** The docID of the last document of every term. */
+    private int[] lastDoc = new int[1 << 13];
+
+    /** The address of the number of positions of the last document of every term. */
+    private int[] lastTf = new int[1 << 13];
+
+    /** The number of documents of every term (0 for a term without postings). */
+    private int[] df = new int[1 << 13];
+
+    /** A skip entry is kept for every SKIP_INTERVAL-th document of a term (but the first). */
+    static final int SKIP_INTERVAL = 32;
+
+    /** The docIDs of the skip entries of every term (null for a term with at most SKIP_INTERVAL documents). */
+    private int[][] skipDocs = new int[1 << 13][];
+
+    /**
+     *  Where the documents of the skip entries start: three ints per entry,
+     *  the address of the docID, and the address of the pointer at the end
+     *  and the level of its block.
+     */
+    private int[][] skipBlocks = new int[1 << 13][];
+
+
+    public void add( int termID, int docID, int offset ) {
+        if ( termID >= head.length ) {
+            grow( termID );
+        }
+        if ( df[termID] > 0 && lastDoc[termID] == docID ) {
+            append( termID, offset );
+            int a = lastTf[termID];
+            writeInt( a, readInt( a ) + 1 );
+            return;
+        }
+        if ( df[termID] == 0 ) {
+            int b = allocate( BLOCK_SIZE[0] );
+            head[termID] = b;
+            write[termID] = b;
+            end[termID] = b + BLOCK_SIZE[0] - 1;
+            level[termID] = 0;
+        }
+        addSkip( termID, docID, append( termID, docID ));
+        lastTf[termID] = append( termID, 1 );
+        append( termID, offset );
+        lastDoc[termID] = docID;
+        df[termID]++;
+    }
+
+
+    /**
+     *  Appends an int to the postings of a term, and returns its address.
+     *  A new block is chained on when the current one is full.
+     */
+    private int append( int termID, int value ) {
+        int w = write[termID];
+        if ( w == end[termID] ) {
+            int lv = Math.min( level[termID] + 1, BLOCK_SIZE.length - 1 );
+            int b = allocate( BLOCK_SIZE[lv] );
+            writeInt( w, b );
+            level[termID] = (byte)lv;
+            end[termID] = b + BLOCK_SIZE[lv] - 1;
+            w = b;
+        }
+        writeInt( w, value );
+        write[termID] = w + 1;
+        return w;
+    }
+
+
+    /**
+     *  Adds a skip entry for the document whose docID was just appended at
+     *  @code{address}, if the number of documents of the term before it is
+     *  a multiple of @code{SKIP_INTERVAL}.
+     */
+    private void addSkip( int termID, int docID, int address ) {
+        int k = df[termID];
+        if ( k == 0 || k % SKIP_INTERVAL != 0 ) {
+            return;
+        }
+        int j = k / SKIP_INTERVAL - 1;
+        if ( skipDocs[termID] == null ) {
+            skipDocs[termID] = new int[4];
+            skipBlocks[termID] = new int[3*4];
+        } else if ( j == skipDocs[termID].length ) {
+            skipDocs[termID] = Arrays.copyOf( skipDocs[termID], 2*j );
+            skipBlocks[termID] = Arrays.copyOf( skipBlocks[termID], 3*2*j );
+        }
+        skipDocs[termID][j] = docID;
+        skipBlocks[termID][3*j] = address;
+        skipBlocks[termID][3*j+1] = end[termID];
+        skipBlocks[termID][3*j+2] = level[termID];
+    }
+
+
+    /** Returns the address of a new block of @code{size} ints. A block never spans two slabs. */
+    private int allocate( int size ) {
+        if ( (free & SLAB_MASK) + size > SLAB_INTS || (free >>> SLAB_SHIFT) == slabs.length ) {
+            int slab = slabs.length;
+            if ( slab > (Integer.MAX_VALUE >>> SLAB_SHIFT) ) {
+                throw new IllegalStateException( "The off-heap postings store is full" );
+            }
+            slabs = Arrays.copyOf( slabs, slab + 1 );
+            slabs[slab] = ByteBuffer.allocateDirect( SLAB_INTS * 4 ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+            free = slab << SLAB_SHIFT;
+        }
+        int b = free;
+        free += size;
+        return b;
+    }
+
+
+    private int readInt( int address ) {
+        return slabs[address >>> SLAB_SHIFT].get( address & SLAB_MASK );
+    }
+
+
+    private void writeInt( int address, int value ) {
+        slabs[address >>> SLAB_SHIFT].put( address & SLAB_MASK, value );
+    }
+
+
+    public PostingsList get( int termID ) {
+        if ( docFrequency( termID ) == 0 ) {
+            return null;
+        }
+        ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>( df[termID] );
+        Reader r = new Reader( termID );
+        while ( r.hasNext() ) {
+            list.add( r.entry( r.next() ));
+        }
+        return new PostingsList( list );
+    }
+
+
+    public PostingsCursor cursor( int termID ) {
+        if ( docFrequency( termID ) == 0 ) {
+            return null;
+        }
+        return new Cursor( termID );
+    }
+
+
+    public int docFrequency( int termID ) {
+        return (termID >= 0 && termID < df.length) ? df[termID] : 0;
+    }
+
+
+    public long firstOccurrence( int termID ) {
+        if ( docFrequency( termID ) == 0 ) {
+            return -1;
+        }
+        // The first document fits in the first block
+        int b = head[termID];
+        return ((long)readInt( b ) << 32) | readInt( b + 2 );
+    }
+
+
+    public void put( int termID, PostingsList list ) {
+        remove( termID );
+        for ( int i=0; i<list.size(); i++ ) {
+            PostingsEntry e = list.get( i );
+            for ( int j=0; j<e.size(); j++ ) {
+                add( termID, e.docID, e.get( j ));
+            }
+        }
+    }
+
+
+    public void remove( int termID ) {
+        if ( termID < df.length ) {
+            df[termID] = 0;
+            skipDocs[termID] = null;
+            skipBlocks[termID] = null;
+        }
+    }
+
+
+    /** The number of bytes taken by the slabs. */
+    public long bytes() {
+        return (long)slabs.length * SLAB_INTS * 4;
+    }
+
+
+    /** Makes room for the term with this ID. */
+    private void grow( int termID ) {
+        int size = Math.max( 2*head.length, termID+1 );
+        head = Arrays.copyOf( head, size );
+        write = Arrays.copyOf( write, size );
+        end = Arrays.copyOf( end, size );
+        level = Arrays.copyOf( level, size );
+        lastDoc = Arrays.copyOf( lastDoc, size );
+        lastTf = Arrays.copyOf( lastTf, size );
+        df = Arrays.copyOf( df, size );
+        skipDocs = Arrays.copyOf( skipDocs, size );
+        skipBlocks = Arrays.copyOf( skipBlocks, size );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads the ints of a term in order, following the chain of blocks.
+     */
+    private class Reader {
+
+        /** The address of the next int. */
+        int pos;
+
+        /** The address of the pointer at the end of the current block. */
+        int blockEnd;
+
+        /** The level of the current block. */
+        int lv = 0;
+
+        /** The address after the last int of the term. */
+        final int limit;
+
+        Reader( int termID ) {
+            pos = head[termID];
+            blockEnd = pos + BLOCK_SIZE[0] - 1;
+            limit = write[termID];
+        }
+
+        boolean hasNext() {
+            return pos != limit;
+        }
+
+        int next() {
+            if ( pos == blockEnd ) {
+                lv = Math.min( lv + 1, BLOCK_SIZE.length - 1 );
+                pos = readInt( pos );
+                blockEnd = pos + BLOCK_SIZE[lv] - 1;
+            }
+            return readInt( pos++ );
+        }
+
+        /** Moves to @code{address}, in the block that ends at @code{blockEnd} and is at level @code{lv}. */
+        void seek( int address, int blockEnd, int lv ) {
+            this.pos = address;
+            this.blockEnd = blockEnd;
+            this.lv = lv;
+        }
+
+        /** Skips @code{n} ints. */
+        void skip( int n ) {
+            while ( n > 0 ) {
+                if ( pos == blockEnd ) {
+                    lv = Math.min( lv + 1, BLOCK_SIZE.length - 1 );
+                    pos = readInt( pos );
+                    blockEnd = pos + BLOCK_SIZE[lv] - 1;
+                }
+                int k = Math.min( n, blockEnd - pos );
+                pos += k;
+                n -= k;
+            }
+        }
+
+        /** Reads the rest of the entry of document @code{docID}. */
+        PostingsEntry entry( int docID ) {
+            int tf = next();
+            int[] positions = new int[tf];
+            for ( int i=0; i<tf; i++ ) {
+                positions[i] = next();
+            }
+            return new PostingsEntry( docID, positions, tf );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A cursor over the postings of a term. The positions of a document
+     *  are read only if they are asked for, and skipped otherwise. It
+     *  advances by galloping through the skip table of the term, and then
+     *  reads at most @code{SKIP_INTERVAL} documents.
+     */
+    private class Cursor implements PostingsCursor {
+
+        final Reader r;
+
+        final int size;
+
+        int docID = -1;
+
+        int freq;
+
+        /** The positions of the current document, or null if they have not been read. */
+        int[] positions;
+
+        /** The docIDs of the skip entries and where their documents start (null if there are none). */
+        final int[] skipDocs, skipBlocks;
+
+        /** The number of skip entries. */
+        final int skips;
+
+        /** The first skip entry that may still be ahead of the cursor. */
+        int skip = 0;
+
+        Cursor( int termID ) {
+            r = new Reader( termID );
+            size = df[termID];
+            skipDocs = OffHeapPostingsStore.this.skipDocs[termID];
+            skipBlocks = OffHeapPostingsStore.this.skipBlocks[termID];
+            skips = (size - 1) / SKIP_INTERVAL;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            if ( docID >= 0 && positions == null ) {
+                r.skip( freq );
+            }
+            positions = null;
+            if ( !r.hasNext() ) {
+                return docID = NO_MORE_DOCS;
+            }
+            docID = r.next();
+            freq = r.next();
+            return docID;
+        }
+
+        public int advance( int target ) {
+            if ( skip < skips ) {
+                // Jump to the last skip entry before the target, if it is ahead
+                int e = PostingsList.gallop( skipDocs, skip, skips, target );
+                if ( e > skip && skipDocs[e-1] > docID ) {
+                    int b = 3*(e-1);
+                    r.seek( skipBlocks[b], skipBlocks[b+1], skipBlocks[b+2] );
+                    positions = null;
+                    docID = r.next();
+                    freq = r.next();
+                }
+                skip = e;
+            }
+            int d;
+            while ( (d = nextDoc()) < target ) {
+            }
+            return d;
+        }
+
+        public int freq() {
+            return freq;
+        }
+
+        public int[] positions() {
+            if ( positions == null ) {
+                positions = new int[freq];
+                for ( int i=0; i<freq; i++ ) {
+                    positions[i] = r.next();
+                }
+            }
+            return positions;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *  The compiled regular expressions for non-standard words read from a
+ *  patterns file. Every file is read and compiled only once, and the
+ *  result is shared by all tokenizers.
+ *
+ *  The patterns are also combined into one alternation, which finds the
+ *  leftmost match of any pattern in a single pass over the string. Most
+ *  strings match no pattern at all, and are rejected by this one pass.
+ *  On top of that, every thread remembers the outcome for the strings it
+ *  has seen recently; the words of a text repeat a lot, so most strings
+ *  never reach the regular expressions at all.
+ */
+public class PatternSet {
+
+    /** The pattern sets read so far, by file name. */
+    private static final HashMap<String,PatternSet> cache = new HashMap<String,PatternSet>();
+
+    /** The patterns, in the order of the file (earlier patterns take precedence). */
+    final Pattern[] patterns;
+
+    /** All patterns as one alternation, with every pattern in a capturing group, or null. */
+    final Pattern combined;
+
+    /** The number of the group around each pattern in @code{combined}. */
+    final int[] groups;
+
+    /** The number of strings remembered by each finder. */
+    static final int CACHE_SIZE = 1 << 16;
+
+    /** The finder of each thread. */
+    private final ThreadLocal<Finder> finders = ThreadLocal.withInitial( Finder::new );
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Returns the compiled patterns of the given file.
+     */
+    public static PatternSet forFile( String filename ) {
+        synchronized ( cache ) {
+            PatternSet set = cache.get( filename );
+            if ( set == null ) {
+                set = new PatternSet( readPatterns( filename ));
+                cache.put( filename, set );
+            }
+            return set;
+        }
+    }
+
+
+    PatternSet( ArrayList<Pattern> list ) {
+        patterns = list.toArray( new Pattern[0] );
+        groups = new int[patterns.length];
+        StringBuilder alternation = new StringBuilder();
+        int group = 1;
+        boolean combinable = patterns.length > 0;
+        for ( int i=0; i<patterns.length; i++ ) {
+            String regex = patterns[i].pattern();
+            // Back references would point to the wrong groups in the alternation
+            if ( regex.matches( "(?s).*\\\\([1-9]|k<).*" )) {
+                combinable = false;
+            }
+            if ( i > 0 ) {
+                alternation.append( '|' );
+            }
+            alternation.append( '(' ).append( regex ).append( ')' );
+            groups[i] = group;
+            group += 1 + patterns[i].matcher( "" ).groupCount();
+        }
+        Pattern p = null;
+        if ( combinable ) {
+            try {
+                p = Pattern.compile( alternation.toString() );
+            } catch ( PatternSyntaxException e ) {
+                // Every pattern compiles on its own, so this should not happen.
+                // Just use the patterns one by one.
+            }
+        }
+        combined = p;
+    }
+
+
+    /**
+     *  Reads the patterns that match non-standard words. Reading stops at
+     *  the first malformed pattern.
+     */
+    private static ArrayList<Pattern> readPatterns( String filename ) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        String line = null;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            while (( line = in.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
+                    patterns.add( Pattern.compile( line ));
+                }
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        catch ( PatternSyntaxException e ) {
+            System.err.println( "ERROR: Malformed regular expression: " + line );
+        }
+        return patterns;
+    }
+
+
+    /**
+     *  Returns the finder of the current thread. Finders hold matcher
+     *  state, and must not be shared between threads.
+     */
+    public Finder finder() {
+        return finders.get();
+    }
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Finds non-standard words in strings.
+     */
+    public class Finder {
+
+        private final Matcher all = combined == null ? null : combined.matcher( "" );
+        private final Matcher[] each = new Matcher[patterns.length];
+
+        private int start, end;
+
+        /**
+         *  The recently seen strings and their outcome: the match range as
+         *  start in the high and end in the low 32 bits, or -1 for no match.
+         *  This is an open-addressing table that is cleared when it is half full.
+         */
+        private String[] seen = new String[2*CACHE_SIZE];
+        private int[] seenHashes = new int[2*CACHE_SIZE];
+        private long[] outcomes = new long[2*CACHE_SIZE];
+        private int seenCount = 0;
+
+        Finder() {
+            for ( int i=0; i<patterns.length; i++ ) {
+                each[i] = patterns[i].matcher( "" );
+            }
+        }
+
+        /**
+         *  Looks for a non-standard word in @code{s}. As in the original
+         *  tokenizer, the first pattern (in file order) that matches anywhere
+         *  in @code{s} wins, and its leftmost match is used.
+         *
+         *  @return @code{true} if a match was found; its range is then given
+         *  by @code{start} and @code{end}.
+         */
+        public boolean find( CharSequence s ) {
+            int h = Lexicon.hash( s );
+            int mask = seen.length - 1;
+            int i = Lexicon.mix( h ) & mask;
+            String t;
+            while ( (t = seen[i]) != null ) {
+                if ( seenHashes[i] == h && Lexicon.equals( t, s )) {
+                    long outcome = outcomes[i];
+                    if ( outcome < 0 ) {
+                        return false;
+                    }
+                    start = (int)(outcome >>> 32);
+                    end = (int)outcome;
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            boolean found = match( s );
+            if ( seenCount == CACHE_SIZE ) {
+                Arrays.fill( seen, null );
+                seenCount = 0;
+                i = Lexicon.mix( h ) & mask;
+            }
+            seen[i] = s.toString();
+            seenHashes[i] = h;
+            outcomes[i] = found ? ((long)start << 32) | end : -1;
+            seenCount++;
+            return found;
+        }
+
+        /**
+         *  Runs the regular expressions on @code{s}.
+         */
+        private boolean match( CharSequence s ) {
+            int first = patterns.length;
+            if ( all != null ) {
+                all.reset( s );
+                if ( !all.find() ) {
+                    return false;
+                }
+                // Pattern number 'first' has the leftmost match. A pattern
+                // before it might still match further to the right.
+                first = 0;
+                while ( all.start( groups[first] ) < 0 ) {
+                    first++;
+                }
+                start = all.start();
+                end = all.end();
+            }
+            for ( int i=0; i<first; i++ ) {
+                Matcher m = each[i];
+                m.reset( s );
+                if ( m.find() ) {
+                    start = m.start();
+                    end = m.end();
+                    return true;
+                }
+            }
+            return all != null;
+        }
+
+        /** The start of the last match. */
+        public int start() {
+            return start;
+        }
+
+        /** The end of the last match. */
+        public int end() {
+            return end;
+        }
+    }
+}
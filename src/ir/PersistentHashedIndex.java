@@ -22,6 +22,44 @@ import java.nio.charset.*;
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   If the main-memory HashMap grows beyond a memory budget, it is written
+ *   to disk as a sorted run, and cleared (single-pass in-memory indexing).
+ *   When all words are read, the runs are merged into the index on disk.
+ *
+ *   The dictionary is a hash table with Robin Hood probing, sized from the
+ *   vocabulary when the index is written. Every slot holds the place and
+ *   length of the term's data record, its document frequency, a 32-bit
+ *   fingerprint of the term and the length of the term, so a lookup reads
+ *   a few neighbouring slots at once and then only the data record of a
+ *   term with the right fingerprint. The header of the dictionary file
+ *   holds the table size and the longest probe sequence, which bounds the
+ *   work for a term that is not in the index.
+ *
+ *   The data record of a term holds the term, its encoded postings and the
+ *   score bounds of the postings (see @code{ScoreBounds}), which ranked
+ *   top-k retrieval uses to skip documents that cannot make the top k.
+ *   The bounds depend on the norms of the documents' tf-idf vectors, which
+ *   are computed while the postings are written and are stored with the
+ *   document table, so the bounds are filled in once all terms are
+ *   written. An index written before the bounds were added is still read,
+ *   but is ranked without skipping.
+ *
+ *   The terms file holds a sorted, front-coded dictionary of all terms
+ *   (see @code{TermDictionary}), which lists the terms in order, by prefix
+ *   or by range. It is read into main memory the first time it is needed.
+ *
+ *   An index opened read-only maps the dictionary and data files into
+ *   memory. Lookups then make no system calls and take no locks, so any
+ *   number of threads can search the index at the same time.
+ *
+ *   An index that is rewritten as a whole while it is in use (see
+ *   @code{IncrementalIndex}) writes every new generation of its files to
+ *   a subdirectory of its own, and a manifest file in the index directory
+ *   names the current one. The manifest is replaced by a single atomic
+ *   rename, so after a crash the index is either the old generation or
+ *   the new one. Without a manifest, the files are in the index directory
+ *   itself.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -40,8 +78,44 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 611953L;
+    /** The impact-ordered postings file name (see ImpactIndex) */
+    public static final String IMPACTS_FNAME = "impacts";
+
+    /** The sorted runs are stored in files with this prefix, followed by the run number */
+    public static final String RUN_FNAME = "run";
+
+    /** The manifest file name (the name of the directory of the current generation) */
+    public static final String MANIFEST_FNAME = "current";
+
+    /** The generations of the files are stored in directories with this prefix, followed by the generation number */
+    public static final String GENERATION_PREFIX = "gen";
+
+    /** The default memory budget (in bytes) for the main-memory HashMap. */
+    public static final long DEFAULT_BLOCK_BUDGET = 256L << 20;
+
+    /** The dictionary hash table is at most this full. */
+    public static final double MAX_LOAD = 0.75;
+
+    /** The first four bytes of a dictionary file. */
+    static final int DICTIONARY_MAGIC = 0x52484432;
+
+    /** The first four bytes of a dictionary file whose data records have no score bounds. */
+    static final int DICTIONARY_MAGIC_NO_BOUNDS = 0x52484431;
+
+    /** The size of the header of the dictionary file. */
+    public static final int HEADER_SIZE = 16;
+
+    /** The size of a slot of the dictionary hash table. */
+    public static final int SLOT_SIZE = 24;
+
+    /** The number of slots a lookup reads at once. */
+    static final int SLOTS_PER_READ = 4;
+
+    /** The directory of the index, where the manifest is. */
+    final String home;
+
+    /** The directory where the files of this index are stored (the current generation). */
+    String dir;
 
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
@@ -49,15 +123,56 @@ public class PersistentHashedIndex implements Index {
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** True if the index is only searched, through memory mappings of its files. */
+    final boolean readOnly;
+
+    /** The dictionary file mapped into memory, in read-only mode. */
+    MappedFile dictionaryMap;
+
+    /** The data file mapped into memory, in read-only mode. */
+    MappedFile dataMap;
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
+    /** True if the data records hold the score bounds of the postings. */
+    boolean hasBounds = true;
+
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
-    public static final int ENTRYSIZE = 46;
+    /** The memory budget (in bytes) for @code{index}, before it is written to a run. */
+    long blockBudget;
+
+    /** The estimated number of bytes currently used by @code{index}. */
+    long blockBytes = 0L;
+
+    /** The number of sorted runs written so far. */
+    int numRuns = 0;
+
+    /** The number of slots of the dictionary hash table (a power of 2). */
+    int tableSize = 0;
 
-    private long skip = TABLESIZE / 10L;
+    /** The longest distance of a term from its home slot. */
+    int maxProbe = 0;
+
+    /** The dictionary entries of the terms, while the index is written. */
+    ArrayList<Entry> written;
+
+    /** The number of terms written to the index. */
+    int termsWritten;
+
+    /** The sorted term dictionary, or null if it has not been read yet. */
+    private TermDictionary terms;
+
+    /** The term dictionary being built, while the index is written. */
+    TermDictionary.Builder termsOut;
+
+    /** The norms of the documents being computed, while the index is written. */
+    DocTable.Norms normsOut;
+
+    /** The data records of recently looked up terms, or null if they are not kept. */
+    PostingsCache postingsCache;
 
     // ===================================================================
 
@@ -65,12 +180,25 @@ public class PersistentHashedIndex implements Index {
      *   A helper class representing one entry in the dictionary hashtable.
      */ 
     public class Entry {
+        /** The position of the data record (the term, its postings and their score bounds). */
         long data_pos;
+        /** The number of bytes of encoded postings, or 0 for an empty slot. */
         int PL_size;
-
-        public Entry(long data_pos, int PL_size){
+        /** The number of documents containing the term. */
+        int df;
+        /** The fingerprint of the term, see @code{fingerprint}. */
+        int fingerprint;
+        /** The number of bytes of the term in UTF-8. */
+        int term_size;
+        /** The data record, once it has been read by @code{lookup}. */
+        byte[] record;
+
+        public Entry(long data_pos, int PL_size, int df, int fingerprint, int term_size){
             this.data_pos = data_pos;
             this.PL_size = PL_size;
+            this.df = df;
+            this.fingerprint = fingerprint;
+            this.term_size = term_size;
         }
     }
 
@@ -81,34 +209,207 @@ public class PersistentHashedIndex implements Index {
      *  If these files don't exist, they will be created. 
      */
     public PersistentHashedIndex() {
+        this( DEFAULT_BLOCK_BUDGET );
+    }
+
+    /**
+     *  Constructor.
+     *
+     *  @param blockBudget The number of bytes the main-memory index may use
+     *         before it is written to disk as a sorted run.
+     */
+    public PersistentHashedIndex( long blockBudget ) {
+        this( INDEXDIR, blockBudget );
+    }
+
+    /**
+     *  Constructor for an index stored in the given directory.
+     */
+    public PersistentHashedIndex( String dir, long blockBudget ) {
+        this( dir, blockBudget, false );
+    }
+
+    /**
+     *  Constructor for an index stored in the given directory.
+     *
+     *  @param readOnly If true, the index can only be searched, and its
+     *         files are mapped into memory (see @code{MappedFile}).
+     */
+    public PersistentHashedIndex( String dir, long blockBudget, boolean readOnly ) {
+        this.home = dir;
+        this.dir = currentDir( dir );
+        this.blockBudget = blockBudget;
+        this.readOnly = readOnly;
+        openFiles();
+
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            readDocInfo();
+        } catch ( FileNotFoundException e ) {
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     *  Returns the directory of the current generation of the files of the
+     *  index in @code{home}: the one named by the manifest, or @code{home}
+     *  itself if there is no manifest.
+     */
+    static String currentDir( String home ) {
+        File manifest = new File( home, MANIFEST_FNAME );
+        if ( manifest.exists() ) {
+            try {
+                String name = new String( java.nio.file.Files.readAllBytes( manifest.toPath() ), StandardCharsets.UTF_8 ).trim();
+                return new File( home, name ).getPath();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        return home;
+    }
+
+    /**
+     *  Returns the directory for the next generation of the files of this
+     *  index.
+     */
+    File nextGeneration() {
+        int generation = 0;
+        String name = new File( dir ).getName();
+        if ( !dir.equals( home ) && name.startsWith( GENERATION_PREFIX )) {
+            generation = Integer.parseInt( name.substring( GENERATION_PREFIX.length() ));
+        }
+        return new File( home, GENERATION_PREFIX + (generation + 1) );
+    }
 
+    /**
+     *  Opens the dictionary file and the data file, and maps them into
+     *  memory in read-only mode.
+     */
+    private void openFiles() {
         try {
-            readDocInfo();
-        } catch ( FileNotFoundException e ) {
+            String mode = readOnly ? "r" : "rw";
+            dictionaryFile = new RandomAccessFile( dir + "/" + DICTIONARY_FNAME, mode );
+            dataFile = new RandomAccessFile( dir + "/" + DATA_FNAME, mode );
+            readHeader();
+            if ( readOnly ) {
+                dictionaryMap = new MappedFile( new File( dir, DICTIONARY_FNAME ));
+                dataMap = new MappedFile( new File( dir, DATA_FNAME ));
+            }
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+        terms = null;
+        if ( postingsCache != null ) {
+            postingsCache.clear();
+        }
     }
 
     /**
-     *  Writes data to the data file at a specified place.
+     *  Reads the table size and the longest probe sequence from the header
+     *  of the dictionary file. An empty file is an empty index.
+     */
+    private void readHeader() throws IOException {
+        tableSize = 0;
+        maxProbe = 0;
+        if ( dictionaryFile.length() == 0 ) {
+            return;
+        }
+        dictionaryFile.seek( 0 );
+        int magic = dictionaryFile.readInt();
+        hasBounds = magic == DICTIONARY_MAGIC;
+        if ( magic != DICTIONARY_MAGIC && magic != DICTIONARY_MAGIC_NO_BOUNDS ) {
+            throw new IOException( dir + "/" + DICTIONARY_FNAME + " is not a dictionary, the index must be rebuilt" );
+        }
+        tableSize = dictionaryFile.readInt();
+        maxProbe = dictionaryFile.readInt();
+    }
+
+    /**
+     *  Returns the sorted term dictionary, which is read from the terms
+     *  file the first time, or null if there is none.
+     */
+    synchronized TermDictionary termDictionary() {
+        if ( terms == null ) {
+            File file = new File( dir + "/" + TERMS_FNAME );
+            if ( file.exists() ) {
+                try {
+                    terms = TermDictionary.read( file );
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     *  Closes the dictionary file and the data file.
+     */
+    void close() {
+        try {
+            dictionaryFile.close();
+            dataFile.close();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Makes the files of another index, which is closed, the current
+     *  generation of this index. The other index must be stored in
+     *  @code{nextGeneration()}, with all the files that belong to the new
+     *  generation. They are forced to disk, and the manifest is then
+     *  replaced by an atomic rename. The files of the old generation are
+     *  left to the caller.
+     */
+    synchronized void replaceWith( PersistentHashedIndex other ) throws IOException {
+        other.close();
+        File[] files = new File( other.dir ).listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                force( file );
+            }
+        }
+        File manifest = new File( home, MANIFEST_FNAME );
+        File tmp = new File( home, MANIFEST_FNAME + ".tmp" );
+        try ( FileOutputStream out = new FileOutputStream( tmp )) {
+            out.write( (new File( other.dir ).getName() + "\n").getBytes( StandardCharsets.UTF_8 ));
+            out.getFD().sync();
+        }
+        java.nio.file.Files.move( tmp.toPath(), manifest.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                                  java.nio.file.StandardCopyOption.REPLACE_EXISTING );
+        force( new File( home ));
+        close();
+        dir = other.dir;
+        openFiles();
+    }
+
+    /** Forces the contents of a file (or the entries of a directory) to disk, where the platform allows it. */
+    private static void force( File file ) {
+        try ( java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open( file.toPath(),
+                  file.isDirectory() ? java.nio.file.StandardOpenOption.READ : java.nio.file.StandardOpenOption.WRITE )) {
+            channel.force( true );
+        } catch ( IOException e ) {
+            // Some platforms cannot open or sync a directory
+        }
+    }
+
+    /**
+     *  Writes data to the data file at a specified place: the word, followed
+     *  by its encoded postings list (see @code{PostingsCodec}) and the
+     *  score bounds of the postings (see @code{ScoreBounds}).
      *
      *  @return The number of bytes written.
      */
-    int writeData(String word, String dataString, long ptr ) {
+    int writeData(String word, byte[] data, byte[] bounds, long ptr ) {
         try {
             dataFile.seek( ptr );
-            byte[] w = word.getBytes();
-            byte[] data = dataString.getBytes();
-            dataFile.write(w);
-            dataFile.write( data );
-            return data.length;
+            byte[] w = word.getBytes(StandardCharsets.UTF_8);
+            byte[] record = Arrays.copyOf( w, w.length + data.length + bounds.length );
+            System.arraycopy( data, 0, record, w.length, data.length );
+            System.arraycopy( bounds, 0, record, w.length + data.length, bounds.length );
+            dataFile.write( record );
+            return record.length;
         } catch ( IOException e ) {
             e.printStackTrace();
             return -1;
@@ -118,12 +419,17 @@ public class PersistentHashedIndex implements Index {
     /**
      *  Reads data from the data file
      */
-    String readData( long ptr, int size ) {
+    byte[] readData( long ptr, int size ) {
+        if ( dataMap != null ) {
+            byte[] data = new byte[size];
+            dataMap.read( ptr, data, 0, size );
+            return data;
+        }
         try {
             dataFile.seek( ptr );
             byte[] data = new byte[size];
             dataFile.readFully( data );
-            return new String(data);
+            return data;
         } catch ( IOException e ) {
             e.printStackTrace();
             return null;
@@ -134,134 +440,334 @@ public class PersistentHashedIndex implements Index {
 
     //  Reading and writing to the dictionary file.
 
-    /*
-     *  Writes an entry to the dictionary hash table file. 
-     *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
-     */
-    void writeEntry( Entry entry, long ptr ) {
-        //
-        //  YOUR CODE HERE
-        //
-        try{
-            dictionaryFile.seek(ptr);
-            dictionaryFile.writeLong(entry.data_pos);
-            dictionaryFile.writeLong(entry.PL_size);
-        }
-        catch(IOException e){
-            e.printStackTrace();
-        }
+    /**
+     *  Returns the fingerprint of a term, from which its home slot in the
+     *  dictionary hash table is taken.
+     */
+    static int fingerprint( String term ) {
+        return Lexicon.mix( term.hashCode() );
     }
 
     /**
-     *  Reads an entry from the dictionary file.
+     *  Writes the dictionary hash table, with the entries of all terms
+     *  written to the data file. The table size is the smallest power of
+     *  2 that keeps the table at most @code{MAX_LOAD} full.
      *
-     *  @param ptr The place in the dictionary file where to start reading.
+     *  The entries are inserted with Robin Hood probing: an entry that is
+     *  further from its home slot than the one it meets takes over the slot,
+     *  and the other entry moves on. This keeps the probe sequences short
+     *  and even, and the entries along a probe sequence ordered by distance,
+     *  so a lookup can stop at the first entry that is closer to home than
+     *  the term looked for would be.
      */
-    boolean checkWord(long ptr, String word){
-        try{
-            dataFile.seek(ptr);
-            byte[] w = new byte[word.length()];
-            dataFile.readFully(w);
-            return (word.equals(new String(w)));
+    void writeDictionary( List<Entry> entries ) throws IOException {
+        int size = 16;
+        while ( size * MAX_LOAD < entries.size() ) {
+            size *= 2;
         }
-        catch ( IOException e ) {
-            e.printStackTrace();
-            return false;
+        int mask = size - 1;
+        Entry[] table = new Entry[size];
+        maxProbe = 0;
+        for ( Entry entry : entries ) {
+            int slot = entry.fingerprint & mask;
+            int dist = 0;
+            while ( table[slot] != null ) {
+                int other = (slot - table[slot].fingerprint) & mask;
+                if ( other < dist ) {
+                    Entry displaced = table[slot];
+                    table[slot] = entry;
+                    maxProbe = Math.max( maxProbe, dist );
+                    entry = displaced;
+                    dist = other;
+                }
+                slot = (slot + 1) & mask;
+                dist++;
+            }
+            table[slot] = entry;
+            maxProbe = Math.max( maxProbe, dist );
+        }
+        tableSize = size;
+
+        dictionaryFile.setLength( 0 );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( dictionaryFile.getFD() ), 1 << 16 ));
+        out.writeInt( DICTIONARY_MAGIC );
+        hasBounds = true;
+        out.writeInt( tableSize );
+        out.writeInt( maxProbe );
+        out.writeInt( entries.size() );
+        for ( Entry entry : table ) {
+            if ( entry == null ) {
+                out.write( new byte[SLOT_SIZE] );
+            } else {
+                out.writeLong( entry.data_pos );
+                out.writeInt( entry.PL_size );
+                out.writeInt( entry.df );
+                out.writeInt( entry.fingerprint );
+                out.writeInt( entry.term_size );
+            }
         }
+        out.flush();
     }
 
-    Entry readEntry( long ptr ) {
-        long data_ptr = 0L;
-        int PL_size = 0;
-        try{
-            dictionaryFile.seek(ptr);
-            data_ptr = dictionaryFile.readLong();
-            PL_size = (int)dictionaryFile.readLong();
-        }
-        catch (IOException e){
+    /**
+     *  Reads @code{n} consecutive slots of the dictionary hash table, from
+     *  slot @code{slot} on (wrapping around at the end of the table).
+     *  Empty slots are returned as entries with @code{PL_size == 0}.
+     */
+    Entry[] readEntries( int slot, int n ) {
+        Entry[] result = new Entry[n];
+        try {
+            int first = Math.min( n, tableSize - slot );
+            byte[] b = new byte[n * SLOT_SIZE];
+            if ( dictionaryMap != null ) {
+                dictionaryMap.read( HEADER_SIZE + (long)slot * SLOT_SIZE, b, 0, first * SLOT_SIZE );
+                dictionaryMap.read( HEADER_SIZE, b, first * SLOT_SIZE, (n - first) * SLOT_SIZE );
+            } else {
+                // One read instead of one per number, as readLong would do
+                dictionaryFile.seek( HEADER_SIZE + (long)slot * SLOT_SIZE );
+                dictionaryFile.readFully( b, 0, first * SLOT_SIZE );
+                if ( first < n ) {
+                    dictionaryFile.seek( HEADER_SIZE );
+                    dictionaryFile.readFully( b, first * SLOT_SIZE, (n - first) * SLOT_SIZE );
+                }
+            }
+            java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap( b );
+            for ( int i=0; i<n; i++ ) {
+                result[i] = new Entry( bb.getLong(), bb.getInt(), bb.getInt(), bb.getInt(), bb.getInt() );
+            }
+        } catch ( IOException e ) {
             e.printStackTrace();
         }
-        return (new Entry(data_ptr,PL_size));
+        return result;
     }
 
 
     // ==================================================================
 
     /**
-     *  Writes the document names and document lengths to file.
+     *  Writes the document names, lengths and norms to file (see
+     *  @code{DocTable.write}).
      *
      * @throws IOException  { exception_description }
      */
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
+    void writeDocInfo() throws IOException {
+        docs.write( new File( dir + "/" + DOCINFO_FNAME ));
     }
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Reads the document names, lengths and norms from file into the
+     *  document table.
      *
      * @throws     IOException  { exception_description }
      */
     private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(";");
-                docNames.put(new Integer(data[0]), data[1]);
-                docLengths.put(new Integer(data[0]), new Integer(data[2]));
-            }
+        File file = new File( dir + "/" + DOCINFO_FNAME );
+        if ( !file.exists() ) {
+            throw new FileNotFoundException( file.getPath() );
         }
-        freader.close();
+        docs.read( file );
     }
 
 
     /**
-     *  Write the index to files.
+     *  Returns the impact-ordered postings of the given terms of
+     *  @code{index}, which is this index or an IncrementalIndex on top of
+     *  it. They are read from the current generation if they were saved
+     *  there for the same documents, and otherwise computed, and saved
+     *  unless the index is read-only.
      */
+    ImpactIndex impacts( Index index, Iterable<String> terms ) {
+        File file = new File( dir, IMPACTS_FNAME );
+        if ( file.exists() ) {
+            try {
+                ImpactIndex impacts = ImpactIndex.read( file, docs );
+                if ( impacts != null ) {
+                    return impacts;
+                }
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        ImpactIndex impacts = new ImpactIndex( index, terms );
+        if ( !readOnly && impacts.isCurrent() ) {
+            try {
+                impacts.write( file );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        return impacts;
+    }
 
-    /*Hash function*/
-
-    private long getNewHash(long hashvalue) { return (hashvalue + skip) % TABLESIZE; }
 
+    /**
+     *  Write the index to files.
+     */
     public void writeIndex() {
-        int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
+            // Write the dictionary and the postings list
+            beginWrite();
+            // The term dictionary is built in sorted order
+            String[] sorted = index.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            for(String term: sorted){
+                writeTerm(term, index.get(term));
+            }
+            endWrite();
+
+            // Write the document table (with the norms) to a file
             writeDocInfo();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
 
-            // Write the dictionary and the postings list
-            int count = 0;
+    /**
+     *  Prepares for writing terms to an empty dictionary and data file.
+     */
+    void beginWrite() throws IOException {
+        dictionaryFile.setLength( 0 );
+        dataFile.setLength( 0 );
+        written = new ArrayList<Entry>();
+        termsWritten = 0;
+        free = 0L;
+        termsOut = new TermDictionary.Builder();
+        normsOut = new DocTable.Norms( docs );
+        if ( postingsCache != null ) {
+            postingsCache.clear();
+        }
+    }
 
-            boolean[] occupied = new boolean[(int)TABLESIZE];
-            for(Map.Entry<String,PostingsList> entry: index.entrySet()){
-                long h = Math.abs(entry.getKey().hashCode()) % TABLESIZE;
+    /**
+     *  Finishes writing the index: sets the norms of the documents, writes
+     *  the score bounds of the terms, and writes the dictionary hash table
+     *  and the term dictionary. The document table is written by the caller.
+     */
+    void endWrite() throws IOException {
+        normsOut.set();
+        normsOut = null;
+        writeBounds();
+        writeDictionary( written );
+        System.err.println( "Dictionary: " + tableSize + " slots, longest probe " + maxProbe );
+        terms = termsOut.build();
+        terms.write( new File( dir + "/" + TERMS_FNAME ));
+        termsOut = null;
+        written = null;
+    }
 
-                while(occupied[(int)h]){
-                    collisions++;
-                    h = getNewHash(h);
-                }
-                count++;
-                if(count % 10000 == 0) System.err.println("Saved " +count+ " indexes");
-                occupied[(int)h] = true;
-                int num_bytes = writeData(entry.getKey(),entry.getValue().toStr(),free);
-                writeEntry(new Entry(free, num_bytes),h*(ENTRYSIZE));
-                free += (entry.getKey().length() + num_bytes);
+    /**
+     *  Writes the postings of one term to the data file, and keeps its entry
+     *  for the dictionary hash table and the term dictionary, which are
+     *  written by @code{endWrite}. The terms must be written in
+     *  lexicographic order. Room is kept for the score bounds, which are
+     *  written by @code{endWrite} once the norms of the documents are known.
+     */
+    void writeTerm(String term, PostingsList postings) {
+        termsWritten++;
+        if(termsWritten % 10000 == 0) System.err.println("Saved " +termsWritten+ " indexes");
+        byte[] data = PostingsCodec.encode(postings);
+        byte[] bounds = new byte[ScoreBounds.bytes(postings.size())];
+        normsOut.add(postings.cursor());
+        termsOut.add(term, free, data.length, postings.size());
+        int num_bytes = writeData(term, data, bounds, free);
+        written.add(new Entry(free, data.length, postings.size(), fingerprint(term), num_bytes - data.length - bounds.length));
+        free += num_bytes;
+    }
+
+    /**
+     *  Writes the score bounds of every term written into the room kept for
+     *  them after its postings.
+     */
+    private void writeBounds() throws IOException {
+        for ( Entry entry : written ) {
+            byte[] data = readData( entry.data_pos + entry.term_size, entry.PL_size );
+            byte[] bounds = ScoreBounds.of( new PostingsCodec.Cursor( data, 0, entry.PL_size ), docs ).encode();
+            dataFile.seek( entry.data_pos + entry.term_size + entry.PL_size );
+            dataFile.write( bounds );
+        }
+    }
 
+    /**
+     *  Writes the main-memory index to disk as a sorted run, and clears it.
+     */
+    private void writeBlock() {
+        File run = new File( dir + "/" + RUN_FNAME + numRuns );
+        try {
+            PostingsRun.write( run, index );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        System.err.println( "Wrote block " + numRuns + " (" + index.size() + " terms) to disk" );
+        numRuns++;
+        index.clear();
+        blockBytes = 0L;
+    }
+
+    /**
+     *  Merges all sorted runs into the dictionary and data files, reading
+     *  each run sequentially, one term at a time.
+     */
+    private void mergeRuns() {
+        try {
+            beginWrite();
+
+            PriorityQueue<PostingsRun.Reader> queue = new PriorityQueue<PostingsRun.Reader>();
+            for ( int i=0; i<numRuns; i++ ) {
+                PostingsRun.Reader reader = new PostingsRun.Reader( new File( dir + "/" + RUN_FNAME + i ), i );
+                if ( reader.next() ) {
+                    queue.add( reader );
+                }
+            }
+            while ( !queue.isEmpty() ) {
+                // Readers with equal terms come out in run order, i.e. in docID order.
+                PostingsRun.Reader reader = queue.poll();
+                String term = reader.term;
+                PostingsList postings = reader.postings;
+                advance( reader, queue );
+                while ( !queue.isEmpty() && queue.peek().term.equals( term )) {
+                    reader = queue.poll();
+                    postings = concat( postings, reader.postings );
+                    advance( reader, queue );
+                }
+                writeTerm( term, postings );
             }
+            endWrite();
+            writeDocInfo();
         } catch ( IOException e ) {
             e.printStackTrace();
         }
-        System.err.println( collisions + " collisions." );
+        for ( int i=0; i<numRuns; i++ ) {
+            new File( dir + "/" + RUN_FNAME + i ).delete();
+        }
+    }
+
+    /** Moves a run reader to its next term, and puts it back in the queue unless it is exhausted. */
+    private void advance( PostingsRun.Reader reader, PriorityQueue<PostingsRun.Reader> queue ) throws IOException {
+        if ( reader.next() ) {
+            queue.add( reader );
+        }
+    }
+
+    /**
+     *  Appends the postings of a later run to the postings of an earlier one.
+     *  A document that was split between two blocks has its positions joined.
+     */
+    private PostingsList concat( PostingsList first, PostingsList second ) {
+        int i = 0;
+        if ( first.size() > 0 && second.size() > 0 ) {
+            PostingsEntry last = first.get( first.size()-1 );
+            PostingsEntry next = second.get( 0 );
+            if ( last.docID == next.docID ) {
+                for ( int j=0; j<next.size(); j++ ) {
+                    last.addPosition( next.get( j ));
+                }
+                i = 1;
+            }
+        }
+        for ( ; i<second.size(); i++ ) {
+            first.addEntry( second.get( i ));
+        }
+        return first;
     }
 
     // ==================================================================
@@ -271,34 +777,245 @@ public class PersistentHashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        long hash_v = Math.abs(token.hashCode()) % TABLESIZE;
-        Entry entry = readEntry(hash_v * ENTRYSIZE);
-        while(!checkWord(entry.data_pos, token)){
-            hash_v = getNewHash(hash_v);
-            entry = readEntry(hash_v * ENTRYSIZE);
+        Entry entry = lookup(token, true);
+        if(entry == null){
+            return null;
+        }
+        return PostingsCodec.decode(entry.record, entry.term_size, entry.PL_size);
+    }
+
+    /**
+     *  Returns a cursor over the postings of a term, or null if the term
+     *  is not in the index. The postings are decoded as the cursor moves.
+     */
+    public PostingsCursor cursor( String token ) {
+        Entry entry = lookup(token, true);
+        if(entry == null){
+            return null;
         }
-        return (new PostingsList(readData(entry.data_pos + token.length(), entry.PL_size)));
+        return new PostingsCodec.Cursor(entry.record, entry.term_size, entry.PL_size);
     }
 
     /**
-     *  Inserts this token in the main-memory hashtable.
+     *  Returns the score bounds of the postings of a term, or null if the
+     *  term is not in the index or the index was written without bounds.
+     *  Only the term and the bounds are read from the data record.
+     */
+    public ScoreBounds scoreBounds( String token ) {
+        if(!hasBounds){
+            return null;
+        }
+        if(readOnly){
+            return readBounds(token);
+        }
+        synchronized(this){
+            return readBounds(token);
+        }
+    }
+
+    /** Reads the score bounds of a term, see @code{scoreBounds}. */
+    private ScoreBounds readBounds( String token ) {
+        Entry entry = find(token, false);
+        if(entry == null){
+            return null;
+        }
+        byte[] data = readData(entry.data_pos + entry.term_size + entry.PL_size, ScoreBounds.bytes(entry.df));
+        return data == null ? null : ScoreBounds.decode(data, 0, entry.df);
+    }
+
+    /**
+     *  Returns the number of documents containing a term. Only the term
+     *  itself is read from the data file, to make sure it is the right one.
+     */
+    public int docFrequency( String token ) {
+        Entry entry = lookup(token, false);
+        return entry == null ? 0 : entry.df;
+    }
+
+    /**
+     *  Looks up a term in the dictionary hash table. The slots are read
+     *  a few at a time from the home slot of the term on, and the data
+     *  record of a slot is only read if its fingerprint and term length
+     *  match. The search ends at an empty slot, at a slot closer to its
+     *  home than the term would be (Robin Hood order), or after the
+     *  longest probe sequence in the table.
+     *
+     *  In read-only mode the files are read through their mappings, without
+     *  locking. Otherwise the lookup holds the lock of the index, since the
+     *  files have a single file pointer and can be replaced by a merge.
+     *
+     *  If there is a postings cache, a term whose postings are wanted is
+     *  looked for there first, and is put there once it is read. Lookups
+     *  without the postings skip the cache.
+     *
+     *  @param withPostings If true, the postings are read along with the term.
+     *  @return The dictionary entry of the term, with the data record in
+     *  @code{record}, or null if the term is not in the index.
+     */
+    private Entry lookup( String token, boolean withPostings ) {
+        if(readOnly){
+            return find(token, withPostings);
+        }
+        synchronized(this){
+            return find(token, withPostings);
+        }
+    }
+
+    /** Looks up a term in the postings cache and then in the files, see @code{lookup}. */
+    private Entry find( String token, boolean withPostings ) {
+        if(postingsCache == null || !withPostings){
+            return probe(token, withPostings);
+        }
+        Entry entry = postingsCache.get(token);
+        if(entry == null){
+            entry = probe(token, true);
+            if(entry != null){
+                postingsCache.put(token, entry);
+            }
+        }
+        return entry;
+    }
+
+    /** Searches the dictionary hash table for a term, see @code{lookup}. */
+    private Entry probe( String token, boolean withPostings ) {
+        if(tableSize == 0){
+            return null;
+        }
+        byte[] key = token.getBytes(StandardCharsets.UTF_8);
+        int fp = fingerprint(token);
+        int mask = tableSize - 1;
+        int home = fp & mask;
+        int probes = Math.min(maxProbe + 1, tableSize);
+        for(int dist = 0; dist < probes; dist += SLOTS_PER_READ){
+            Entry[] slots = readEntries((home + dist) & mask, Math.min(SLOTS_PER_READ, probes - dist));
+            for(int i = 0; i < slots.length; i++){
+                Entry entry = slots[i];
+                if(entry.PL_size == 0 || (((home + dist + i) - entry.fingerprint) & mask) < dist + i){
+                    return null;
+                }
+                if(entry.fingerprint == fp && entry.term_size == key.length){
+                    byte[] record = readData(entry.data_pos, key.length + (withPostings ? entry.PL_size : 0));
+                    if(record != null && TermDictionary.compare(record, 0, key.length, key, key.length) == 0){
+                        entry.record = record;
+                        return entry;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Returns the terms of the index, in lexicographic order.
+     */
+    public ArrayList<String> readTerms() {
+        ArrayList<String> result = new ArrayList<String>();
+        TermDictionary terms = termDictionary();
+        if ( terms != null ) {
+            for ( TermDictionary.Term t : terms ) {
+                result.add( t.term );
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the terms of the index that start with @code{prefix}, in
+     *  lexicographic order.
+     */
+    public ArrayList<String> termsWithPrefix( String prefix ) {
+        ArrayList<String> result = new ArrayList<String>();
+        TermDictionary terms = termDictionary();
+        if ( terms != null ) {
+            for ( TermDictionary.Term t : terms.prefix( prefix )) {
+                result.add( t.term );
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the terms @code{t} of the index with @code{from <= t < to},
+     *  in lexicographic order. A null bound means no bound.
+     */
+    public ArrayList<String> termsInRange( String from, String to ) {
+        ArrayList<String> result = new ArrayList<String>();
+        TermDictionary terms = termDictionary();
+        if ( terms != null ) {
+            for ( TermDictionary.Term t : terms.range( from, to )) {
+                result.add( t.term );
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Inserts this token in the main-memory hashtable. When the hashtable
+     *  has outgrown its memory budget, it is written to disk as a sorted run.
      */
     public void insert( String token, int docID, int offset ) {
-        if(!index.containsKey(token)){
-            PostingsList new_postings = new PostingsList();
-            new_postings.add(docID, offset);
-            index.put(token, new_postings);
+        if(readOnly){
+            throw new IllegalStateException("The index " + dir + " is open read-only");
+        }
+        PostingsList postings = index.get(token);
+        if(postings == null){
+            postings = new PostingsList();
+            index.put(token, postings);
+            // hash map node, String and PostingsList
+            blockBytes += 96 + 2 * token.length();
+        }
+        int entries = postings.size();
+        postings.add(docID, offset);
+        // a position in the int array (with some room to grow), or a new
+        // PostingsEntry with its array if the docID is new
+        blockBytes += (postings.size() > entries) ? 64 : 6;
+        if(blockBytes > blockBudget){
+            writeBlock();
+        }
+    }
+
+    /**
+     *  Inserts the postings of a term, whose docIDs all come after those
+     *  the term already has, in the main-memory hashtable at once (used
+     *  when merging index shards).
+     */
+    public void insert( String token, PostingsList postings ) {
+        if(readOnly){
+            throw new IllegalStateException("The index " + dir + " is open read-only");
+        }
+        PostingsList old = index.get(token);
+        if(old == null){
+            index.put(token, postings);
+            blockBytes += 96 + 2 * token.length();
+        } else {
+            old.list.addAll(postings.list);
+        }
+        // as if the positions had been inserted one by one
+        for(PostingsEntry e : postings.list){
+            blockBytes += 58 + 6 * e.size();
+        }
+        if(blockBytes > blockBudget){
+            writeBlock();
         }
-        index.get(token).add(docID, offset);
     }
 
     /**
      *  Write index to file after indexing is done.
      */
     public void cleanup() {
-        System.err.println( index.keySet().size() + " unique words" );
-        System.err.print( "Writing index to disk...\n" );
-        writeIndex();
+        if ( readOnly ) {
+            return;
+        }
+        if ( numRuns == 0 ) {
+            System.err.println( index.keySet().size() + " unique words" );
+            System.err.print( "Writing index to disk...\n" );
+            writeIndex();
+        } else {
+            writeBlock();
+            System.err.print( "Merging " + numRuns + " runs...\n" );
+            mergeRuns();
+            System.err.println( termsWritten + " unique words" );
+        }
         System.err.println( "done!");
     }
 
@@ -0,0 +1,246 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *   Keeps the data records of recently looked up terms of a persistent
+ *   index in main memory, so that a term that is looked up again is found
+ *   without reading the index files.
+ *
+ *   The cache is bounded by the number of bytes of the records, and is
+ *   a segmented LRU: a term enters a probation segment, and moves to a
+ *   protected segment, which may take up to @code{PROTECTED_SHARE} of the
+ *   budget, when it is looked up again. The least recently used term of
+ *   the protected segment goes back to probation when the segment is
+ *   full, and terms are dropped from probation only. So terms that are
+ *   looked up once, for instance by a query with many wildcard terms, do
+ *   not push out the terms that are looked up all the time.
+ *
+ *   The terms are spread over up to @code{STRIPES} stripes by their hash
+ *   code, each a segmented LRU with its own share of the budget and its
+ *   own lock, so that threads searching a read-only index at the same time
+ *   seldom wait for each other. A stripe gets at least
+ *   @code{MIN_STRIPE_BYTES}, so a small cache has fewer stripes.
+ *
+ *   The records hold the encoded postings (see @code{PostingsCodec}),
+ *   which take less room than a PostingsList and can be shared: every
+ *   lookup decodes them anew, so no caller sees what another one changes.
+ */
+public class PostingsCache {
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_BYTES = 64L << 20;
+
+    /** The share of the budget the protected segment may take. */
+    static final double PROTECTED_SHARE = 0.8;
+
+    /** The estimated number of bytes a term takes, besides its record and its characters. */
+    static final int OVERHEAD = 160;
+
+    /** The largest number of stripes. */
+    static final int STRIPES = 16;
+
+    /** The smallest budget of a stripe, in bytes. */
+    static final long MIN_STRIPE_BYTES = 4L << 20;
+
+    final long maxBytes;
+
+    private final Stripe[] stripes;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+
+    public PostingsCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+        int n = (int)Math.max( 1, Math.min( STRIPES, maxBytes / MIN_STRIPE_BYTES ));
+        stripes = new Stripe[n];
+        for ( int i=0; i<n; i++ ) {
+            stripes[i] = new Stripe( maxBytes / n );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A segmented LRU holding the terms of one stripe.
+     */
+    private static class Stripe {
+
+        final long maxBytes;
+
+        /** The terms looked up once, least recently used first. */
+        final LinkedHashMap<String,PersistentHashedIndex.Entry> probation = new LinkedHashMap<String,PersistentHashedIndex.Entry>();
+
+        /** The terms looked up more than once, least recently used first. */
+        final LinkedHashMap<String,PersistentHashedIndex.Entry> protect = new LinkedHashMap<String,PersistentHashedIndex.Entry>();
+
+        long probationBytes = 0;
+
+        long protectedBytes = 0;
+
+        Stripe( long maxBytes ) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized PersistentHashedIndex.Entry get( String term ) {
+            PersistentHashedIndex.Entry entry = protect.remove( term );
+            if ( entry != null ) {
+                // Most recently used again
+                protect.put( term, entry );
+                return entry;
+            }
+            entry = probation.remove( term );
+            if ( entry == null ) {
+                return null;
+            }
+            long b = bytes( term, entry );
+            probationBytes -= b;
+            protect.put( term, entry );
+            protectedBytes += b;
+            // The least recently used protected terms go back to probation
+            Iterator<Map.Entry<String,PersistentHashedIndex.Entry>> it = protect.entrySet().iterator();
+            while ( protectedBytes > PROTECTED_SHARE * maxBytes && it.hasNext() ) {
+                Map.Entry<String,PersistentHashedIndex.Entry> e = it.next();
+                if ( e.getValue() == entry ) {
+                    break;
+                }
+                it.remove();
+                long eb = bytes( e.getKey(), e.getValue() );
+                protectedBytes -= eb;
+                probation.put( e.getKey(), e.getValue() );
+                probationBytes += eb;
+            }
+            evict();
+            return entry;
+        }
+
+        synchronized void put( String term, PersistentHashedIndex.Entry entry ) {
+            long b = bytes( term, entry );
+            if ( b > maxBytes / 8 || probation.containsKey( term ) || protect.containsKey( term )) {
+                return;
+            }
+            probation.put( term, entry );
+            probationBytes += b;
+            evict();
+        }
+
+        /** Drops the least recently used terms in probation while the stripe is too full. */
+        private void evict() {
+            Iterator<Map.Entry<String,PersistentHashedIndex.Entry>> it = probation.entrySet().iterator();
+            while ( probationBytes + protectedBytes > maxBytes && it.hasNext() ) {
+                Map.Entry<String,PersistentHashedIndex.Entry> e = it.next();
+                it.remove();
+                probationBytes -= bytes( e.getKey(), e.getValue() );
+            }
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+
+        synchronized long used() {
+            return probationBytes + protectedBytes;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Returns the number of bytes a term and its record take. */
+    static long bytes( String term, PersistentHashedIndex.Entry entry ) {
+        return OVERHEAD + 2L * term.length() + entry.record.length;
+    }
+
+
+    /** Returns the stripe of a term. */
+    private Stripe stripe( String term ) {
+        int h = term.hashCode();
+        return stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length];
+    }
+
+
+    /**
+     *  Returns the entry of a term, with its data record, or null if the
+     *  term is not in the cache.
+     */
+    public PersistentHashedIndex.Entry get( String term ) {
+        PersistentHashedIndex.Entry entry = stripe( term ).get( term );
+        if ( entry != null ) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+
+    /**
+     *  Puts the entry of a term, whose data record holds its postings, in
+     *  probation. A term that would take more than an eighth of its stripe
+     *  is not kept.
+     */
+    public void put( String term, PersistentHashedIndex.Entry entry ) {
+        stripe( term ).put( term, entry );
+    }
+
+
+    /** Drops all terms, for instance when the index files are replaced. */
+    public void clear() {
+        for ( Stripe s : stripes ) {
+            s.clear();
+        }
+    }
+
+
+    /** Returns the number of lookups that found their term in the cache. */
+    public long hits() {
+        return hits.sum();
+    }
+
+
+    /** Returns the number of lookups that did not. */
+    public long misses() {
+        return misses.sum();
+    }
+
+
+    /** Returns the fraction of the lookups that found their term in the cache. */
+    public double hitRatio() {
+        long h = hits(), m = misses();
+        return h + m == 0 ? 0 : (double)h / (h + m);
+    }
+
+
+    public String toString() {
+        int terms = 0;
+        long bytes = 0;
+        for ( Stripe s : stripes ) {
+            terms += s.size();
+            bytes += s.used();
+        }
+        long h = hits(), m = misses();
+        return String.format( "%d terms (%d KB) in %d stripes, %d hits, %d misses, hit ratio %.3f", terms, bytes >> 10,
+                              stripes.length, h, m, h + m == 0 ? 0 : (double)h / (h + m) );
+    }
+}
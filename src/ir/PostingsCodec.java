@@ -0,0 +1,284 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   The binary format of postings lists on disk.
+ *
+ *   A postings list is stored as the number of entries, followed by every
+ *   entry as the gap to the previous docID, the number of positions, and
+ *   the gaps between the positions (the first one counted from 0). All
+ *   numbers are written in variable-byte code: seven bits per byte, least
+ *   significant group first, with the high bit set on every byte but the
+ *   last one of a number.
+ *
+ *   Lists longer than @code{SKIP_INTERVAL} entries have a skip table
+ *   between the number of entries and the entries. The entries are
+ *   divided into blocks of @code{SKIP_INTERVAL}, and for every block but
+ *   the first the table holds the last docID before the block and the
+ *   byte offset of the block (both as gaps to the previous skip). This
+ *   lets a decoder jump over the blocks that cannot contain a wanted docID.
+ */
+public class PostingsCodec {
+
+    /** The number of entries between two skips. */
+    public static final int SKIP_INTERVAL = 64;
+
+    /** The bytes written so far. */
+    private byte[] buf = new byte[256];
+    private int len = 0;
+
+
+    /**
+     *  Encodes a postings list.
+     */
+    public static byte[] encode( PostingsList postings ) {
+        int size = postings.size();
+        int numSkips = (size - 1) / SKIP_INTERVAL;
+        int[] skipDocIDs = new int[numSkips];
+        int[] skipOffsets = new int[numSkips];
+
+        PostingsCodec entries = new PostingsCodec();
+        int lastDocID = 0;
+        for ( int i=0; i<size; i++ ) {
+            if ( i > 0 && i % SKIP_INTERVAL == 0 ) {
+                skipDocIDs[i/SKIP_INTERVAL - 1] = lastDocID;
+                skipOffsets[i/SKIP_INTERVAL - 1] = entries.len;
+            }
+            PostingsEntry e = postings.get( i );
+            entries.writeVByte( e.docID - lastDocID );
+            lastDocID = e.docID;
+            int n = e.size();
+            entries.writeVByte( n );
+            int last = 0;
+            for ( int j=0; j<n; j++ ) {
+                int p = e.get( j );
+                entries.writeVByte( p - last );
+                last = p;
+            }
+        }
+
+        PostingsCodec out = new PostingsCodec();
+        out.writeVByte( size );
+        int prevDocID = 0;
+        int prevOffset = 0;
+        for ( int k=0; k<numSkips; k++ ) {
+            out.writeVByte( skipDocIDs[k] - prevDocID );
+            out.writeVByte( skipOffsets[k] - prevOffset );
+            prevDocID = skipDocIDs[k];
+            prevOffset = skipOffsets[k];
+        }
+        byte[] result = Arrays.copyOf( out.buf, out.len + entries.len );
+        System.arraycopy( entries.buf, 0, result, out.len, entries.len );
+        return result;
+    }
+
+
+    /**
+     *  Decodes the postings list stored in @code{data[off..off+len)}.
+     */
+    public static PostingsList decode( byte[] data, int off, int len ) {
+        int[] pos = { off };
+        int size = readVByte( data, pos );
+        // Skip the skip table
+        for ( int k=2*((size - 1) / SKIP_INTERVAL); k>0; k-- ) {
+            readVByte( data, pos );
+        }
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>( size );
+        int docID = 0;
+        for ( int i=0; i<size; i++ ) {
+            docID += readVByte( data, pos );
+            entries.add( readEntry( data, pos, docID ));
+        }
+        if ( pos[0] != off + len ) {
+            throw new IllegalArgumentException( "Corrupt postings list: " + (pos[0] - off) + " bytes decoded, " + len + " expected" );
+        }
+        return new PostingsList( entries );
+    }
+
+
+    /**
+     *  Reads the positions of an entry at @code{pos[0]}.
+     */
+    private static PostingsEntry readEntry( byte[] data, int[] pos, int docID ) {
+        int n = readVByte( data, pos );
+        int[] positions = new int[n];
+        int p = 0;
+        for ( int j=0; j<n; j++ ) {
+            p += readVByte( data, pos );
+            positions[j] = p;
+        }
+        return new PostingsEntry( docID, positions, n );
+    }
+
+
+    /**
+     *  Appends a non-negative number in variable-byte code.
+     */
+    private void writeVByte( int v ) {
+        if ( len + 5 > buf.length ) {
+            buf = Arrays.copyOf( buf, 2*buf.length );
+        }
+        while ( (v & ~0x7f) != 0 ) {
+            buf[len++] = (byte)(v | 0x80);
+            v >>>= 7;
+        }
+        buf[len++] = (byte)v;
+    }
+
+
+    /**
+     *  Reads a number in variable-byte code at @code{pos[0]}, and advances
+     *  @code{pos[0]} past it.
+     */
+    static int readVByte( byte[] data, int[] pos ) {
+        int p = pos[0];
+        int b = data[p++];
+        int v = b & 0x7f;
+        for ( int shift=7; b < 0; shift+=7 ) {
+            b = data[p++];
+            v |= (b & 0x7f) << shift;
+        }
+        pos[0] = p;
+        return v;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A cursor over an encoded postings list. Only the docIDs and the
+     *  numbers of positions are decoded as the cursor moves on; the
+     *  positions are decoded if they are asked for, and are skipped byte
+     *  by byte otherwise. @code{advance} jumps over whole blocks through
+     *  the skip table.
+     */
+    public static class Cursor implements PostingsCursor {
+
+        /** Marks that there are no positions to be skipped after a jump. */
+        private static final int[] NO_POSITIONS = new int[0];
+
+        final byte[] data;
+
+        /** The number of entries. */
+        final int size;
+
+        /** skipDocIDs[b] is the last docID before block b, and skipOffsets[b] the offset of block b. */
+        final int[] skipDocIDs;
+        final int[] skipOffsets;
+
+        /** The offset of the first entry. */
+        final int start;
+
+        /** The offset of the next byte to be decoded. */
+        int pos;
+
+        /** The number of entries read so far. */
+        int i = 0;
+
+        int docID = -1;
+
+        int freq;
+
+        /** The positions of the current entry, or null if they have not been decoded. */
+        int[] positions;
+
+        public Cursor( byte[] data, int off, int len ) {
+            this.data = data;
+            pos = off;
+            size = vbyte();
+            int numSkips = (size - 1) / SKIP_INTERVAL;
+            skipDocIDs = new int[numSkips + 1];
+            skipOffsets = new int[numSkips + 1];
+            for ( int k=1; k<=numSkips; k++ ) {
+                skipDocIDs[k] = skipDocIDs[k-1] + vbyte();
+                skipOffsets[k] = skipOffsets[k-1] + vbyte();
+            }
+            start = pos;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            if ( docID >= 0 && positions == null ) {
+                // Skip the positions: every number ends with a byte below 0x80
+                int p = pos;
+                for ( int n=freq; n>0; p++ ) {
+                    if ( data[p] >= 0 ) {
+                        n--;
+                    }
+                }
+                pos = p;
+            }
+            positions = null;
+            if ( i == size ) {
+                return docID = NO_MORE_DOCS;
+            }
+            docID = Math.max( docID, 0 ) + vbyte();
+            freq = vbyte();
+            i++;
+            return docID;
+        }
+
+        public int advance( int target ) {
+            // The last block whose previous docID is before the target
+            int block = (i == 0) ? 0 : (i - 1) / SKIP_INTERVAL;
+            int b = block;
+            while ( b + 1 < skipDocIDs.length && skipDocIDs[b + 1] < target ) {
+                b++;
+            }
+            if ( b > block ) {
+                i = b * SKIP_INTERVAL;
+                docID = skipDocIDs[b];
+                pos = start + skipOffsets[b];
+                positions = NO_POSITIONS;
+            }
+            int d;
+            while ( (d = nextDoc()) < target ) {
+            }
+            return d;
+        }
+
+        public int freq() {
+            return freq;
+        }
+
+        public int[] positions() {
+            if ( positions == null ) {
+                positions = new int[freq];
+                int p = 0;
+                for ( int j=0; j<freq; j++ ) {
+                    p += vbyte();
+                    positions[j] = p;
+                }
+            }
+            return positions;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private int vbyte() {
+            int p = pos;
+            int b = data[p++];
+            int v = b & 0x7f;
+            for ( int shift=7; b < 0; shift+=7 ) {
+                b = data[p++];
+                v |= (b & 0x7f) << shift;
+            }
+            pos = p;
+            return v;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   Walks through the postings of one term, in docID order, without
+ *   building a PostingsList.
+ *
+ *   A cursor starts before the first document. The number of positions
+ *   of the current document is always known, but the positions are only
+ *   decoded if they are asked for, so a query that needs only docIDs (or
+ *   docIDs and term frequencies) does not pay for them.
+ */
+public interface PostingsCursor {
+
+    /** The docID returned when the postings are exhausted. */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** Returns the current docID, -1 before the first call to @code{nextDoc}, or @code{NO_MORE_DOCS}. */
+    public int docID();
+
+    /** Moves to the next document, and returns its docID (or @code{NO_MORE_DOCS}). */
+    public int nextDoc();
+
+    /**
+     *  Moves to the first document whose docID is at least @code{target},
+     *  and returns its docID (or @code{NO_MORE_DOCS}). The target must be
+     *  larger than the current docID.
+     */
+    public default int advance( int target ) {
+        int docID;
+        while ( (docID = nextDoc()) < target ) {
+        }
+        return docID;
+    }
+
+    /** Returns the number of positions of the term in the current document. */
+    public int freq();
+
+    /** Returns the positions of the term in the current document, in increasing order. */
+    public int[] positions();
+
+    /** Returns the number of documents of the term. */
+    public int size();
+
+}
@@ -7,7 +7,7 @@
 
 package ir;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 import java.io.Serializable;
 
@@ -15,7 +15,16 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public int docID;
     public double score = 0;
-    public ArrayList<Integer> positions = new ArrayList<Integer>();
+
+    /**
+     *  The positions of the term in the document, in increasing order.
+     *  Only the first @code{numPositions} elements are used; the array
+     *  grows as positions are added.
+     */
+    int[] positions = NO_POSITIONS;
+    int numPositions = 0;
+
+    private static final int[] NO_POSITIONS = new int[0];
 
     /**
      *  PostingsEntries are compared by their score (only relevant
@@ -42,34 +51,55 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
         this.docID = entry.docID;
         this.score = entry.score;
         this.positions = entry.positions;
+        this.numPositions = entry.numPositions;
+    }
+
+    /** Creates an entry that takes over the first @code{n} elements of @code{positions}. */
+    PostingsEntry(int docID, int[] positions, int n){
+        this.docID = docID;
+        this.positions = positions;
+        this.numPositions = n;
     }
 
     public PostingsEntry(String s){
         String[] offsets = s.split(" ");
         this.docID = Integer.parseInt(offsets[0]);
+        this.positions = new int[offsets.length-1];
         for(int i=1; i<offsets.length; i++){
-            this.positions.add(Integer.parseInt(offsets[i]));
+            this.positions[numPositions++] = Integer.parseInt(offsets[i]);
         }
     }
 
-    public int size(){ return positions.size(); }
+    public int size(){ return numPositions; }
     public int get(int i){
-        return this.positions.get(i);
+        return this.positions[i];
     }
 
     public int get_tf() {
-        return positions.size();
+        return numPositions;
     }
 
     //add position to the doc entry
-    public void addPosition(int offset){ this.positions.add(offset); }
+    public void addPosition(int offset){
+        if(numPositions == positions.length){
+            // Grow by half; most entries hold only one or two positions
+            positions = Arrays.copyOf(positions, numPositions + (numPositions >> 1) + 1);
+        }
+        positions[numPositions++] = offset;
+    }
 
     String toStr(){
-        String ret = Integer.toString(this.docID);
-        for(int offset: this.positions){
-            ret = ret + " " + Integer.toString(offset);
+        StringBuilder ret = new StringBuilder();
+        appendTo(ret);
+        return ret.toString();
+    }
+
+    /** Appends the docID and the positions, separated by spaces. */
+    void appendTo(StringBuilder ret){
+        ret.append(this.docID);
+        for(int i=0; i<numPositions; i++){
+            ret.append(' ').append(positions[i]);
         }
-        return ret;
     }
 
     @Override
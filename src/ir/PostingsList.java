@@ -14,6 +14,13 @@ public class PostingsList implements Comparable<PostingsList>{
     /** The postings list */
     public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
 
+    /**
+     *  The docIDs of the postings in one array, for searching without
+     *  touching the entries. Built when needed; postings are only ever
+     *  appended, so the array is up to date if it has the right length.
+     */
+    private int[] docIDs;
+
     //construct function
     public PostingsList(){}
     public PostingsList(String s){
@@ -49,10 +56,94 @@ public class PostingsList implements Comparable<PostingsList>{
     /** Returns the ith posting. */
     public PostingsEntry get( int i ) { return list.get( i ); }
 
+    /**
+     *  Returns the index of the first docID at or after @code{i} in
+     *  @code{d} that is at least @code{docID} (or @code{d.length} if
+     *  there is none). Uses exponential (galloping) search: steps of 1, 2,
+     *  4, ... until the docID is passed, then binary search in the last
+     *  step, so the cost grows with the log of the distance jumped.
+     */
+    static int gallop(int[] d, int i, int docID) {
+        return gallop(d, i, d.length, docID);
+    }
+
+    /** Galloping search for @code{docID} in the first @code{n} ints of @code{d} (or @code{n} if there is none). */
+    static int gallop(int[] d, int i, int n, int docID) {
+        if (i >= n || d[i] >= docID) {
+            return i;
+        }
+        // d[lo] < docID is invariant
+        int lo = i;
+        int step = 1;
+        int hi = i + step;
+        while (hi < n && d[hi] < docID) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        if (hi > n) {
+            hi = n;
+        }
+        // The first posting with a large enough docID is in (lo, hi]
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (d[mid] < docID) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+
+    /** Returns the docIDs of all postings, in order. */
+    int[] docIDs() {
+        int[] d = docIDs;
+        if (d == null || d.length != list.size()) {
+            d = new int[list.size()];
+            for (int i = 0; i < d.length; i++) {
+                d[i] = list.get(i).docID;
+            }
+            docIDs = d;
+        }
+        return d;
+    }
+
+    /** Returns a cursor over the postings of this list. */
+    public PostingsCursor cursor() {
+        return new PostingsCursor() {
+            int i = -1;
+
+            public int docID() {
+                return i < 0 ? -1 : i < list.size() ? list.get(i).docID : NO_MORE_DOCS;
+            }
+
+            public int nextDoc() {
+                i = Math.min(i + 1, list.size());
+                return docID();
+            }
+
+            public int advance(int target) {
+                i = gallop(docIDs(), i + 1, target);
+                return docID();
+            }
+
+            public int freq() { return list.get(i).size(); }
+
+            public int[] positions() {
+                PostingsEntry e = list.get(i);
+                return Arrays.copyOf(e.positions, e.size());
+            }
+
+            public int size() { return list.size(); }
+        };
+    }
+
     public String toStr(){
-        String ret = "";
+        StringBuilder ret = new StringBuilder();
         for(PostingsEntry pe: this.list){
-            ret = ret + pe.toStr() + "\n";
+            pe.appendTo(ret);
+            ret.append('\n');
         }
         return ret.substring(0, ret.length()-1);
     }
@@ -132,55 +223,41 @@ public class PostingsList implements Comparable<PostingsList>{
 
     /** Merge two postings */
     private PostingsEntry MergeEntry(PostingsEntry e1, PostingsEntry e2){
-        ArrayList<Integer> positions = new ArrayList<Integer>();
+        int[] positions1 = e1.positions;
+        int[] positions2 = e2.positions;
+        int n1 = e1.size();
+        int n2 = e2.size();
+        int[] positions = new int[n1 + n2];
+        int n = 0;
         int i = 0;
         int j = 0;
-        ArrayList<Integer> positions1 = e1.positions;
-        ArrayList<Integer> positions2 = e2.positions;
 
-        while((i < positions1.size()) && (j < positions2.size())){
-            if(positions1.get(i) == positions2.get(j)){
-                positions.add(positions1.get(i));
+        while((i < n1) && (j < n2)){
+            if(positions1[i] == positions2[j]){
+                positions[n++] = positions1[i];
                 i++;
                 j++;
             }
-            else if(positions1.get(i) < positions2.get(j)){
-                positions.add(positions1.get(i));
+            else if(positions1[i] < positions2[j]){
+                positions[n++] = positions1[i];
                 i++;
             }
             else{
-                positions.add(positions2.get(j));
+                positions[n++] = positions2[j];
                 j++;
             }
         }
 
-        for(; i < positions1.size(); i++){
-            positions.add(positions1.get(i));
+        for(; i < n1; i++){
+            positions[n++] = positions1[i];
         }
 
-        for(; j < positions2.size(); j++){
-            positions.add(positions2.get(j));
+        for(; j < n2; j++){
+            positions[n++] = positions2[j];
         }
 
-        PostingsEntry answer = new PostingsEntry(e1);
-        answer.positions = positions;
-        return answer;
-    }
-
-    public PostingsList intersect (PostingsList p2){
-        PostingsList answer = new PostingsList();
-        int i = 0;
-        int j = 0;
-
-        while((i < list.size()) && (j < p2.size())){
-            if(list.get(i).docID == p2.get(j).docID){
-                answer.addEntry(list.get(i));
-                i++;
-                j++;
-            }
-            else if(list.get(i).docID < p2.get(j).docID){ i++; }
-            else{j++;}
-        }
+        PostingsEntry answer = new PostingsEntry(e1.docID, positions, n);
+        answer.score = e1.score;
         return answer;
     }
 
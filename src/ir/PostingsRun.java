@@ -0,0 +1,118 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *   A sorted run of an inverted index on disk, i.e. a list of terms in
+ *   lexicographic order, each followed by its postings.
+ *
+ *   Runs are written one block at a time by the single-pass in-memory
+ *   indexer (SPIMI) in PersistentHashedIndex, and are later read back
+ *   sequentially to be merged into the final index.
+ */
+public class PostingsRun {
+
+    /**
+     *  Writes the given terms and their postings to a run file.
+     *  The terms are written in lexicographic order.
+     */
+    public static void write( File file, Map<String,PostingsList> block ) throws IOException {
+        String[] terms = block.keySet().toArray( new String[0] );
+        Arrays.sort( terms );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ));
+        try {
+            out.writeInt( terms.length );
+            for ( String term : terms ) {
+                out.writeUTF( term );
+                writePostings( out, block.get( term ));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     *  Writes one postings list: its length in bytes, followed by the
+     *  postings in the format of @code{PostingsCodec}.
+     */
+    static void writePostings( DataOutputStream out, PostingsList postings ) throws IOException {
+        byte[] data = PostingsCodec.encode( postings );
+        out.writeInt( data.length );
+        out.write( data );
+    }
+
+
+    /**
+     *  Reads back one postings list written by @code{writePostings}.
+     */
+    static PostingsList readPostings( DataInputStream in ) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully( data );
+        return PostingsCodec.decode( data, 0, data.length );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads a run sequentially, one term at a time.
+     */
+    public static class Reader implements Comparable<Reader> {
+
+        /** The number of the run (runs with smaller numbers hold smaller docIDs). */
+        final int runNo;
+
+        /** The current term, or null when the run is exhausted. */
+        String term;
+
+        /** The postings of the current term. */
+        PostingsList postings;
+
+        /** The number of terms left to read. */
+        private int remaining;
+
+        private DataInputStream in;
+
+        public Reader( File file, int runNo ) throws IOException {
+            this.runNo = runNo;
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ));
+            remaining = in.readInt();
+        }
+
+        /**
+         *  Moves to the next term of the run.
+         *
+         *  @return false if the run is exhausted.
+         */
+        public boolean next() throws IOException {
+            if ( remaining == 0 ) {
+                term = null;
+                postings = null;
+                in.close();
+                return false;
+            }
+            remaining--;
+            term = in.readUTF();
+            postings = readPostings( in );
+            return true;
+        }
+
+        /**
+         *  Readers are ordered by their current term, and by run number
+         *  for equal terms.
+         */
+        public int compareTo( Reader other ) {
+            int c = term.compareTo( other.term );
+            return c != 0 ? c : Integer.compare( runNo, other.runNo );
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   Where a HashedIndex keeps its postings, by term ID.
+ *
+ *   The postings of a term are appended one occurrence at a time, with
+ *   the docIDs in increasing order, and are read back as a PostingsList
+ *   that is built when it is asked for.
+ */
+public interface PostingsStore {
+
+    /** Appends the occurrence of a term at @code{offset} in document @code{docID}. */
+    public void add( int termID, int docID, int offset );
+
+    /** Returns the postings of a term, or null if the term has no postings. */
+    public PostingsList get( int termID );
+
+    /** Returns a cursor over the postings of a term, or null if the term has no postings. */
+    public PostingsCursor cursor( int termID );
+
+    /** Returns the number of documents of a term. */
+    public int docFrequency( int termID );
+
+    /**
+     *  Returns the first occurrence of a term, as the docID in the high and
+     *  the offset in the low 32 bits, or -1 if the term has no postings.
+     */
+    public long firstOccurrence( int termID );
+
+    /** Replaces the postings of a term. */
+    public void put( int termID, PostingsList postings );
+
+    /** Drops the postings of a term. */
+    public void remove( int termID );
+
+    /** Releases the room kept for growth, once indexing is done. */
+    public default void trim() {
+    }
+
+}
@@ -111,6 +111,15 @@ public class Query {
         }
         return count;
     }
+
+    /**
+     *  Returns the idf of a term, from its document frequency, or 0 if the
+     *  term is not in the index.
+     */
+    private static double idf(Index index, String token) {
+        int df = index.docFrequency(token);
+        return df > 0 ? Math.log10((double)index.docs.size()/df) : 0;
+    }
     
     /**
      *  Expands the Query using Relevance Feedback
@@ -147,23 +156,23 @@ public class Query {
 
         //the query and all relevant docs use tf-idf vector
         for (QueryTerm tTerm: queryterm) {
-            uniqTerms.put(tTerm.term, norm_alpha * get_tf(tTerm.term) * Math.log10((double)engine.index.docNames.size()/engine.index.getPostings(tTerm.term).size()));
+            uniqTerms.put(tTerm.term, norm_alpha * get_tf(tTerm.term) * idf(engine.index, tTerm.term));
         }
 
         //only consider relevant docs
         //all token in all relevant docs will be added to uniqTerms as potential query terms
         for(int relevantID: relevantDocs){
-            int doc_len = engine.index.docLengths.get(relevantID);
+            int doc_len = engine.index.docs.length(relevantID);
             double length_norm_beta = norm_beta / (double)doc_len;
             //read the document again and add all tokens and its weight to hashmap
             try{
-                Reader reader = new InputStreamReader( new FileInputStream(engine.index.docNames.get(relevantID)), StandardCharsets.UTF_8 );
+                Reader reader = new InputStreamReader( new FileInputStream(engine.index.docs.name(relevantID)), StandardCharsets.UTF_8 );
                 Tokenizer tok = new Tokenizer( reader, true, false, true, engine.patterns_file );
 
                 while(tok.hasMoreTokens()){
                     String token = tok.nextToken();
                     //use 1* idf (tf=1), as it will be added many times if the token occur multiple times in this doc
-                    double tf_idf = length_norm_beta * Math.log10((double)engine.index.docNames.size()/engine.index.getPostings(token).size());
+                    double tf_idf = length_norm_beta * idf(engine.index, token);
 
                     if(uniqTerms.get(token) != null){
                         double newweight = uniqTerms.get(token) + tf_idf;
@@ -176,7 +185,7 @@ public class Query {
                         uniqTerms.put(token, tf_idf);
                     }
                 }
-                reader.close();
+                tok.close();
             }
             catch (IOException e){
                 System.err.println( "Warning: IOException during relevance feedback." );
@@ -0,0 +1,301 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ *   Keeps the results of recent queries, so that a repeated query is
+ *   answered without searching the index again.
+ *
+ *   A query is looked up by its terms and their weights, the query type,
+ *   the ranking type and the number of documents asked for. The terms of
+ *   an intersection query are sorted, since their order does not change
+ *   the result; the order of the terms of other queries is kept. A result
+ *   is kept as an array of docIDs and an array of scores, and the least
+ *   recently used results are dropped when they take up more than
+ *   @code{maxBytes}.
+ *
+ *   The results hold for one generation of the index, the version of its
+ *   document table (see @code{DocTable.version}), which changes whenever a
+ *   document is added or removed, or the norms are set. All results are
+ *   dropped when it does.
+ *
+ *   A ranked query with wildcards is searched for with the terms the
+ *   wildcards stand for, and these terms are kept with the result, so that
+ *   the query gets them on a cache hit as well (relevance feedback needs
+ *   them).
+ */
+public class QueryCache {
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_BYTES = 16L << 20;
+
+    /** The estimated number of bytes a result takes, besides its documents and terms. */
+    static final int OVERHEAD = 96;
+
+    /** The memory budget of the cache, in bytes. */
+    final long maxBytes;
+
+    /** The results, least recently used first. */
+    private final LinkedHashMap<Key,Result> results = new LinkedHashMap<Key,Result>( 16, 0.75f, true );
+
+    /** The number of bytes used by the results. */
+    private long bytes = 0;
+
+    /** The generation of the index the results hold for. */
+    private int generation = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+
+    public QueryCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  The normalized form of a query, by which results are looked up.
+     */
+    static class Key {
+
+        final String[] terms;
+
+        /** The weights of the terms, or null if the query type does not use them. */
+        final double[] weights;
+
+        final QueryType queryType;
+
+        final RankingType rankingType;
+
+        final int topK;
+
+        private final int hash;
+
+        Key( Query query, QueryType queryType, RankingType rankingType, int topK ) {
+            int n = query.queryterm.size();
+            String[] t = new String[n];
+            for ( int i=0; i<n; i++ ) {
+                t[i] = query.queryterm.get( i ).term;
+            }
+            if ( queryType == QueryType.RANKED_QUERY ) {
+                weights = new double[n];
+                for ( int i=0; i<n; i++ ) {
+                    weights[i] = query.queryterm.get( i ).weight;
+                }
+            } else {
+                weights = null;
+                if ( queryType == QueryType.INTERSECTION_QUERY ) {
+                    Arrays.sort( t );
+                }
+            }
+            this.terms = t;
+            this.queryType = queryType;
+            // Only ranked queries are ranked, and only they return the top k
+            this.rankingType = (queryType == QueryType.RANKED_QUERY) ? rankingType : null;
+            this.topK = (queryType == QueryType.RANKED_QUERY) ? topK : 0;
+            int h = Arrays.hashCode( terms );
+            h = 31 * h + Arrays.hashCode( weights );
+            h = 31 * h + queryType.hashCode();
+            h = 31 * h + (this.rankingType == null ? 0 : this.rankingType.hashCode());
+            hash = 31 * h + this.topK;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals( Object o ) {
+            if ( !(o instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && queryType == k.queryType && rankingType == k.rankingType && topK == k.topK &&
+                Arrays.equals( terms, k.terms ) && Arrays.equals( weights, k.weights );
+        }
+
+        /** True if the terms and weights of a ranked query are those of the key. */
+        boolean sameTerms( ArrayList<Query.QueryTerm> list ) {
+            if ( weights == null || list.size() != terms.length ) {
+                return false;
+            }
+            for ( int i=0; i<terms.length; i++ ) {
+                if ( !terms[i].equals( list.get( i ).term ) || weights[i] != list.get( i ).weight ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns the estimated number of bytes of the key. */
+        long bytes() {
+            long b = weights == null ? 0 : 8L * weights.length;
+            for ( String term : terms ) {
+                b += 40 + 2 * term.length();
+            }
+            return b;
+        }
+    }
+
+
+    /**
+     *  The documents and scores of a result, and the terms a ranked query
+     *  was searched for, if they are not those of the query.
+     */
+    static class Result {
+
+        final int[] docIDs;
+
+        final double[] scores;
+
+        /** The terms the query was searched for, or null if they are those of the query. */
+        final String[] terms;
+
+        final double[] weights;
+
+        final long bytes;
+
+        Result( Key key, PostingsList list, ArrayList<Query.QueryTerm> searched ) {
+            int n = list.size();
+            docIDs = new int[n];
+            scores = new double[n];
+            for ( int i=0; i<n; i++ ) {
+                docIDs[i] = list.get( i ).docID;
+                scores[i] = list.get( i ).score;
+            }
+            long b = OVERHEAD + key.bytes() + 12L * n;
+            if ( searched != null ) {
+                terms = new String[searched.size()];
+                weights = new double[searched.size()];
+                for ( int i=0; i<terms.length; i++ ) {
+                    terms[i] = searched.get( i ).term;
+                    weights[i] = searched.get( i ).weight;
+                    b += 48 + 2 * terms[i].length();
+                }
+            } else {
+                terms = null;
+                weights = null;
+            }
+            bytes = b;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns a new copy of the cached result of a query, or null if it is
+     *  not cached for this generation of the index. On a hit, the terms of
+     *  a ranked query with wildcards are replaced by the terms it was
+     *  searched for, as the search would have done.
+     */
+    public synchronized PostingsList get( Key key, int generation, Query query ) {
+        if ( generation > this.generation ) {
+            clear( generation );
+        }
+        Result r = (generation == this.generation) ? results.get( key ) : null;
+        if ( r == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if ( r.terms != null ) {
+            ArrayList<Query.QueryTerm> searched = new ArrayList<Query.QueryTerm>( r.terms.length );
+            for ( int i=0; i<r.terms.length; i++ ) {
+                searched.add( query.new QueryTerm( r.terms[i], r.weights[i] ));
+            }
+            query.queryterm = searched;
+        }
+        ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>( r.docIDs.length );
+        for ( int i=0; i<r.docIDs.length; i++ ) {
+            list.add( new PostingsEntry( r.docIDs[i], r.scores[i] ));
+        }
+        return new PostingsList( list );
+    }
+
+
+    /**
+     *  Keeps the result of a query, computed for a generation of the index,
+     *  and drops the least recently used results if the cache is full. A
+     *  result that would take more than an eighth of the cache is not kept.
+     *
+     *  @param searched The terms the query was searched for, or null if
+     *         they are those of the key.
+     */
+    public synchronized void put( Key key, int generation, PostingsList list, ArrayList<Query.QueryTerm> searched ) {
+        if ( generation != this.generation ) {
+            // The index changed during the search
+            if ( generation < this.generation ) {
+                return;
+            }
+            clear( generation );
+        }
+        if ( OVERHEAD + key.bytes() + 12L * list.size() > maxBytes / 8 ) {
+            return;
+        }
+        if ( searched != null && key.sameTerms( searched )) {
+            searched = null;
+        }
+        Result r = new Result( key, list, searched );
+        Result old = results.put( key, r );
+        bytes += r.bytes - (old == null ? 0 : old.bytes);
+        Iterator<Result> it = results.values().iterator();
+        while ( bytes > maxBytes && it.hasNext() ) {
+            Result lru = it.next();
+            if ( lru != r ) {
+                bytes -= lru.bytes;
+                it.remove();
+            }
+        }
+    }
+
+
+    /** Drops all results, which hold for an older generation of the index. */
+    private void clear( int generation ) {
+        results.clear();
+        bytes = 0;
+        this.generation = generation;
+    }
+
+
+    /** Drops all results, for instance when the ranking changes. */
+    public synchronized void clear() {
+        clear( generation );
+    }
+
+
+    /** Returns the number of queries answered from the cache. */
+    public synchronized long hits() {
+        return hits;
+    }
+
+
+    /** Returns the number of queries that were not in the cache. */
+    public synchronized long misses() {
+        return misses;
+    }
+
+
+    /** Returns the fraction of the queries answered from the cache. */
+    public synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
+
+    public synchronized String toString() {
+        return String.format( "%d results (%d KB), %d hits, %d misses, hit ratio %.3f", results.size(), bytes >> 10, hits, misses, hitRatio() );
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+ *   Adds up the scores of documents, term at a time, in an array indexed
+ *   by docID, so that no object is made or boxed per document.
+ *
+ *   The array is never cleared as a whole: the entry of a document is
+ *   reset when the current query first gives it a score, which is told by
+ *   a stamp, and the docIDs that got a score are listed as they are first
+ *   seen. So the cost of a query depends on the documents it scores, not
+ *   on the size of the collection.
+ *
+ *   An accumulator is used by one thread at a time.
+ */
+public class ScoreAccumulator {
+
+    /** The score of every document, by docID (valid only if stamped with @code{query}). */
+    private double[] scores = new double[0];
+
+    /** The query in which the score of every document was last set. */
+    private int[] stamps = new int[0];
+
+    /** The current query. */
+    private int query = 1;
+
+    /** The docIDs that have a score in the current query. */
+    private int[] seen = new int[1024];
+
+    private int size = 0;
+
+
+    /**
+     *  Starts a new query, for documents with docIDs (mostly) below
+     *  @code{limit}. The scores of the last query are dropped.
+     */
+    public void reset( int limit ) {
+        if ( limit > scores.length ) {
+            grow( limit );
+        }
+        size = 0;
+        if ( ++query == 0 ) {
+            // The stamps have wrapped around: no entry may look current
+            Arrays.fill( stamps, 0 );
+            query = 1;
+        }
+    }
+
+
+    /** Adds @code{score} to the score of a document. */
+    public void add( int docID, double score ) {
+        if ( docID >= stamps.length ) {
+            grow( docID + 1 );
+        }
+        if ( stamps[docID] != query ) {
+            stamps[docID] = query;
+            scores[docID] = 0;
+            if ( size == seen.length ) {
+                seen = Arrays.copyOf( seen, 2 * size );
+            }
+            seen[size++] = docID;
+        }
+        scores[docID] += score;
+    }
+
+
+    private void grow( int limit ) {
+        scores = Arrays.copyOf( scores, Math.max( limit, scores.length + (scores.length >> 1) ));
+        stamps = Arrays.copyOf( stamps, scores.length );
+    }
+
+
+    /** Returns the number of documents with a score. */
+    public int size() {
+        return size;
+    }
+
+
+    /** Returns the docID of the @code{i}th document with a score, in the order they were seen. */
+    public int docID( int i ) {
+        return seen[i];
+    }
+
+
+    /** Returns the score of a document that has a score. */
+    public double get( int docID ) {
+        return scores[docID];
+    }
+
+
+    /** Sets the score of a document that has a score. */
+    public void set( int docID, double score ) {
+        scores[docID] = score;
+    }
+
+
+    /**
+     *  Returns the documents as new entries, by decreasing score and then
+     *  by increasing docID: all of them, or only the top k if @code{k} is
+     *  positive.
+     */
+    public PostingsList ranked( int k ) {
+        if ( k > 0 && k < size ) {
+            TopDocs top = new TopDocs( k );
+            for ( int i=0; i<size; i++ ) {
+                top.offer( seen[i], scores[seen[i]] );
+            }
+            return top.toList();
+        }
+        Arrays.sort( seen, 0, size );
+        ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>( size );
+        for ( int i=0; i<size; i++ ) {
+            list.add( new PostingsEntry( seen[i], scores[seen[i]] ));
+        }
+        // Stable, so equal scores stay in docID order
+        Collections.sort( list );
+        return new PostingsList( list );
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *   Upper bounds of the impacts of the postings of one term, for the whole
+ *   list and for every block of @code{BLOCK_SIZE} postings.
+ *
+ *   The impact of a posting is the term frequency divided by what the
+ *   score of the document is divided by (the norm of its vector, or its
+ *   length if the norms are not known, see @code{DocTable.normalizer}),
+ *   i.e. what the posting adds to the tf-idf score of the document for a
+ *   query term of weight 1. It is rounded up to a float, so a bound is
+ *   never below the exact value. The bounds must be computed with the
+ *   same normalization as the scores, so they are computed after the
+ *   norms.
+ *
+ *   The blocks are those of the skip table of @code{PostingsCodec}, so a
+ *   cursor can jump past a block whose bound is too low. On disk, the
+ *   bounds follow the postings in the data record of the term: the last
+ *   docID and the largest impact of every block, 8 bytes per block.
+ */
+public class ScoreBounds {
+
+    /** The number of postings in a block. */
+    public static final int BLOCK_SIZE = PostingsCodec.SKIP_INTERVAL;
+
+    /** The largest impact of all postings. */
+    final float max;
+
+    /** The last docID of every block, from @code{last[from]} on. */
+    final int[] last;
+
+    /** The largest impact of every block, from @code{maxes[from]} on. */
+    final float[] maxes;
+
+    final int from;
+
+    /** The number of blocks. */
+    final int blocks;
+
+
+    ScoreBounds( float max, int[] last, float[] maxes, int from, int blocks ) {
+        this.max = max;
+        this.last = last;
+        this.maxes = maxes;
+        this.from = from;
+        this.blocks = blocks;
+    }
+
+
+    /** Returns the number of blocks of a list of @code{df} postings. */
+    static int blocks( int df ) {
+        return (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+
+    /** Returns the number of bytes of the bounds of a list of @code{df} postings on disk. */
+    static int bytes( int df ) {
+        return 8 * blocks( df );
+    }
+
+
+    /**
+     *  Returns the impact of a posting with term frequency @code{tf} in a
+     *  document whose score is divided by @code{normalizer}, rounded up to
+     *  a float.
+     */
+    static float impact( int tf, double normalizer ) {
+        if ( normalizer <= 0 ) {
+            return Float.MAX_VALUE;
+        }
+        double exact = tf / normalizer;
+        float f = (float)exact;
+        return f < exact ? Math.nextUp( f ) : f;
+    }
+
+
+    /**
+     *  Computes the bounds of the postings of a cursor, which is moved to
+     *  the end of the postings.
+     */
+    static ScoreBounds of( PostingsCursor cursor, DocTable docs ) {
+        int n = blocks( cursor.size() );
+        int[] last = new int[n];
+        float[] maxes = new float[n];
+        n = add( cursor, docs, last, maxes, 0 );
+        float max = 0;
+        for ( int b=0; b<n; b++ ) {
+            max = Math.max( max, maxes[b] );
+        }
+        return new ScoreBounds( max, last, maxes, 0, n );
+    }
+
+
+    /**
+     *  Puts the bounds of the blocks of the postings of a cursor in
+     *  @code{last} and @code{maxes}, from @code{from} on.
+     *
+     *  @return The number of blocks.
+     */
+    private static int add( PostingsCursor cursor, DocTable docs, int[] last, float[] maxes, int from ) {
+        int i = 0;
+        for ( int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc() ) {
+            int b = from + i / BLOCK_SIZE;
+            float f = impact( cursor.freq(), docs.normalizer( docID ));
+            maxes[b] = (i % BLOCK_SIZE == 0) ? f : Math.max( maxes[b], f );
+            last[b] = docID;
+            i++;
+        }
+        return blocks( i );
+    }
+
+
+    /**
+     *  Returns the first block from block @code{b} on whose last docID is
+     *  at least @code{docID}, or @code{blocks} if there is none.
+     */
+    int block( int b, int docID ) {
+        while ( b < blocks && last[from + b] < docID ) {
+            b++;
+        }
+        return b;
+    }
+
+
+    /** Returns the largest impact of block @code{b}. */
+    float blockMax( int b ) {
+        return maxes[from + b];
+    }
+
+
+    /** Returns the last docID of block @code{b}. */
+    int blockLast( int b ) {
+        return last[from + b];
+    }
+
+
+    /**
+     *  Returns the bounds in the format of the data file.
+     */
+    byte[] encode() {
+        ByteBuffer out = ByteBuffer.allocate( 8 * blocks );
+        for ( int b=0; b<blocks; b++ ) {
+            out.putInt( last[from + b] );
+            out.putFloat( maxes[from + b] );
+        }
+        return out.array();
+    }
+
+
+    /**
+     *  Reads the bounds of a list of @code{df} postings, written by
+     *  @code{encode}, from @code{data[off..]}.
+     */
+    static ScoreBounds decode( byte[] data, int off, int df ) {
+        int n = blocks( df );
+        int[] last = new int[n];
+        float[] maxes = new float[n];
+        ByteBuffer in = ByteBuffer.wrap( data, off, 8 * n );
+        float max = 0;
+        for ( int b=0; b<n; b++ ) {
+            last[b] = in.getInt();
+            maxes[b] = in.getFloat();
+            max = Math.max( max, maxes[b] );
+        }
+        return new ScoreBounds( max, last, maxes, 0, n );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  The bounds of all terms of a main-memory index, by term ID, in a
+     *  few flat arrays.
+     */
+    static class Table {
+
+        /** The first block of every term; the blocks of term t are start[t]..start[t+1]-1. */
+        final int[] start;
+
+        /** The largest impact of every term. */
+        final float[] max;
+
+        final int[] last;
+
+        final float[] maxes;
+
+        /** Computes the bounds of the terms with IDs below @code{numTerms}. */
+        Table( PostingsStore store, int numTerms, DocTable docs ) {
+            start = new int[numTerms + 1];
+            max = new float[numTerms];
+            int n = 0;
+            for ( int id=0; id<numTerms; id++ ) {
+                n += blocks( store.docFrequency( id ));
+            }
+            last = new int[n];
+            maxes = new float[n];
+            n = 0;
+            for ( int id=0; id<numTerms; id++ ) {
+                start[id] = n;
+                PostingsCursor cursor = store.cursor( id );
+                if ( cursor != null ) {
+                    int b = add( cursor, docs, last, maxes, n );
+                    for ( int i=n; i<n+b; i++ ) {
+                        max[id] = Math.max( max[id], maxes[i] );
+                    }
+                    n += b;
+                }
+            }
+            start[numTerms] = n;
+        }
+
+        /** Returns the bounds of a term, or null if the term is not in the table. */
+        ScoreBounds get( int termID ) {
+            if ( termID < 0 || termID >= max.length || start[termID] == start[termID + 1] ) {
+                return null;
+            }
+            return new ScoreBounds( max[termID], last, maxes, start[termID], start[termID + 1] - start[termID] );
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.ArrayList;
+
+
+/**
+ *  Measures the time it takes to run a list of queries. The queries are
+ *  run against an index built in main memory from a directory, or against
+ *  the persistent index on disk.
+ */
+public class SearchBenchmark {
+
+    String dirname = null;
+    String indexdir = PersistentHashedIndex.INDEXDIR;
+    String patternsfile = null;
+    String queryfile = null;
+    QueryType queryType = QueryType.INTERSECTION_QUERY;
+    RankingType rankingType = RankingType.TF_IDF;
+    int repetitions = 100;
+    int clients = 1;
+    boolean readOnly = false;
+    int topK = 0;
+    boolean impactOrdered = false;
+    int impactCandidates = 4;
+    boolean check = false;
+    long cacheBytes = 0;
+    long postingsCacheBytes = 0;
+
+
+    /**
+     *  Runs every query @code{repetitions} times, after as many warm-up
+     *  rounds, and prints the average time per query.
+     */
+    public void run() throws IOException {
+        Index index;
+        Iterable<String> terms;
+        PersistentHashedIndex persistent = null;
+        Lexicon lexicon = new Lexicon();
+        KGramIndex kgIndex = new KGramIndex( 2, lexicon );
+        if ( dirname != null ) {
+            index = new HashedIndex( lexicon );
+            Indexer indexer = new Indexer( index, kgIndex, patternsfile );
+            indexer.processFiles( new File( dirname ), true );
+            index.cleanup();
+            ArrayList<String> list = new ArrayList<String>();
+            for ( int id=0; id<lexicon.size(); id++ ) {
+                list.add( lexicon.term( id ));
+            }
+            terms = list;
+        } else {
+            persistent = new PersistentHashedIndex( indexdir, PersistentHashedIndex.DEFAULT_BLOCK_BUDGET, readOnly );
+            if ( postingsCacheBytes > 0 ) {
+                persistent.postingsCache = new PostingsCache( postingsCacheBytes );
+            }
+            terms = persistent.readTerms();
+            for ( String term : terms ) {
+                kgIndex.insert( term );
+            }
+            index = persistent;
+        }
+        Searcher searcher = new Searcher( index, kgIndex );
+        searcher.topK = topK;
+        searcher.impactCandidates = impactCandidates;
+        if ( impactOrdered ) {
+            // The impacts of a persistent index are read from its files, or saved with them
+            searcher.impacts = (persistent != null) ? persistent.impacts( index, terms ) : new ImpactIndex( index, terms );
+        }
+        if ( cacheBytes > 0 ) {
+            searcher.cache = new QueryCache( cacheBytes );
+        }
+
+        ArrayList<String> queries = new ArrayList<String>();
+        try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( queryfile ), StandardCharsets.UTF_8 ))) {
+            String line;
+            while (( line = in.readLine()) != null ) {
+                if ( line.trim().length() > 0 ) {
+                    queries.add( line.trim() );
+                }
+            }
+        }
+
+        if ( check ) {
+            check( searcher, queries );
+            return;
+        }
+
+        // Warm up, so that all code paths are compiled before they are timed
+        for ( int i=0; i<repetitions; i++ ) {
+            for ( String q : queries ) {
+                searcher.search( new Query( q ), queryType, rankingType );
+            }
+        }
+
+        if ( clients > 1 ) {
+            runConcurrently( searcher, queries );
+            return;
+        }
+
+        double total = 0;
+        for ( String q : queries ) {
+            PostingsList result = searcher.search( new Query( q ), queryType, rankingType );
+            long startTime = System.nanoTime();
+            for ( int i=0; i<repetitions; i++ ) {
+                searcher.search( new Query( q ), queryType, rankingType );
+            }
+            double ms = (System.nanoTime() - startTime) / 1e6 / repetitions;
+            total += ms;
+            System.out.println( String.format( "%8.3f ms  %6d docs  %s", ms, result == null ? 0 : result.size(), q ));
+        }
+        System.out.println( String.format( "%8.3f ms  total", total ));
+        printCaches( searcher, index );
+    }
+
+
+    /**
+     *  Checks that every query gets the same top k documents, with the same
+     *  scores, from @code{searcher} as from scoring every document, and
+     *  prints the queries that do not. Documents with equal scores may
+     *  change places.
+     */
+    void check( Searcher searcher, ArrayList<String> queries ) {
+        Searcher exhaustive = new Searcher( searcher.index, searcher.kgIndex );
+        int same = 0;
+        for ( String q : queries ) {
+            PostingsList result = searcher.search( new Query( q ), queryType, rankingType );
+            PostingsList all = exhaustive.search( new Query( q ), queryType, rankingType );
+            int n = (all == null) ? 0 : (topK > 0) ? Math.min( topK, all.size() ) : all.size();
+            boolean ok = (result == null ? 0 : result.size()) == n;
+            for ( int i=0; i<n && ok; i++ ) {
+                ok = result.get( i ).docID == all.get( i ).docID || result.get( i ).score == all.get( i ).score;
+            }
+            if ( ok ) {
+                same++;
+            } else {
+                System.out.println( "Differs from exhaustive ranking: " + q );
+            }
+        }
+        System.out.println( String.format( "%d of %d queries get the same %s as exhaustive ranking", same, queries.size(),
+                                           topK > 0 ? "top " + topK : "results" ));
+    }
+
+
+    /** Prints the statistics of the caches in use. */
+    static void printCaches( Searcher searcher, Index index ) {
+        if ( searcher.cache != null ) {
+            System.out.println( "Query cache: " + searcher.cache );
+        }
+        if ( index instanceof PersistentHashedIndex && ((PersistentHashedIndex)index).postingsCache != null ) {
+            System.out.println( "Postings cache: " + ((PersistentHashedIndex)index).postingsCache );
+        }
+    }
+
+
+    /**
+     *  Runs all queries @code{repetitions} times from @code{clients} threads
+     *  at the same time, checks that every thread gets the same results as
+     *  a single thread, and prints the throughput.
+     */
+    void runConcurrently( Searcher searcher, ArrayList<String> queries ) {
+        int[] expected = new int[queries.size()];
+        for ( int i=0; i<queries.size(); i++ ) {
+            PostingsList result = searcher.search( new Query( queries.get( i )), queryType, rankingType );
+            expected[i] = result == null ? 0 : result.size();
+        }
+        int[] errors = new int[1];
+        Thread[] threads = new Thread[clients];
+        long startTime = System.nanoTime();
+        for ( int t=0; t<clients; t++ ) {
+            threads[t] = new Thread( () -> {
+                for ( int r=0; r<repetitions; r++ ) {
+                    for ( int i=0; i<queries.size(); i++ ) {
+                        PostingsList result = searcher.search( new Query( queries.get( i )), queryType, rankingType );
+                        if ( (result == null ? 0 : result.size()) != expected[i] ) {
+                            synchronized ( errors ) {
+                                errors[0]++;
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for ( Thread t : threads ) {
+            try {
+                t.join();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long n = (long)clients * repetitions * queries.size();
+        System.out.println( String.format( "%d queries from %d threads in %.2f s: %.0f queries/s, %d wrong results", n, clients, seconds, n / seconds, errors[0] ));
+        printCaches( searcher, searcher.index );
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -q <filename> : name of the file containing the queries, one per line (mandatory)" );
+        System.err.println( "  -d <dirname> : builds an index in main memory from this directory (optional)" );
+        System.err.println( "  -i <dirname> : the directory of the persistent index, if -d is not given (default ./index)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -t intersection|phrase|ranked : the query type (default intersection)" );
+        System.err.println( "  -n <number> : the number of times each query is run (default 100)" );
+        System.err.println( "  -c <number> : the number of threads running the queries at the same time (default 1)" );
+        System.err.println( "  -ro true|false : opens the persistent index read-only, through memory mapping (default false)" );
+        System.err.println( "  -k <number> : ranked queries return only the top k documents (default 0, all documents)" );
+        System.err.println( "  -impacts true|false : top-k ranked queries read impact-ordered postings (default false)" );
+        System.err.println( "  -candidates <number> : top-k queries over the impacts score this many times k documents exactly (default 4)" );
+        System.err.println( "  -check true|false : compares the results with exhaustive ranking instead of timing the queries (default false)" );
+        System.err.println( "  -qcache <number> : keeps the results of recent queries in a cache of this many MB (default 0, no cache)" );
+        System.err.println( "  -pcache <number> : keeps the postings of recently looked up terms of the persistent index in a cache of this many MB (default 0, no cache)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        SearchBenchmark b = new SearchBenchmark();
+        int i=0;
+        while ( i<args.length ) {
+            if ( i+1 >= args.length ) {
+                printHelpMessage();
+                return;
+            }
+            String value = args[i+1];
+            if ( args[i].equals( "-q" )) {
+                b.queryfile = value;
+            } else if ( args[i].equals( "-d" )) {
+                b.dirname = value;
+            } else if ( args[i].equals( "-i" )) {
+                b.indexdir = value;
+            } else if ( args[i].equals( "-p" )) {
+                b.patternsfile = value;
+            } else if ( args[i].equals( "-n" )) {
+                b.repetitions = Integer.parseInt( value );
+            } else if ( args[i].equals( "-c" )) {
+                b.clients = Math.max( 1, Integer.parseInt( value ));
+            } else if ( args[i].equals( "-ro" )) {
+                b.readOnly = Boolean.parseBoolean( value );
+            } else if ( args[i].equals( "-k" )) {
+                b.topK = Math.max( 0, Integer.parseInt( value ));
+            } else if ( args[i].equals( "-pcache" )) {
+                b.postingsCacheBytes = Long.parseLong( value ) << 20;
+            } else if ( args[i].equals( "-qcache" )) {
+                b.cacheBytes = Long.parseLong( value ) << 20;
+            } else if ( args[i].equals( "-impacts" )) {
+                b.impactOrdered = Boolean.parseBoolean( value );
+            } else if ( args[i].equals( "-candidates" )) {
+                b.impactCandidates = Math.max( 1, Integer.parseInt( value ));
+            } else if ( args[i].equals( "-check" )) {
+                b.check = Boolean.parseBoolean( value );
+            } else if ( args[i].equals( "-t" )) {
+                if ( value.equals( "intersection" )) {
+                    b.queryType = QueryType.INTERSECTION_QUERY;
+                } else if ( value.equals( "phrase" )) {
+                    b.queryType = QueryType.PHRASE_QUERY;
+                } else if ( value.equals( "ranked" )) {
+                    b.queryType = QueryType.RANKED_QUERY;
+                } else {
+                    printHelpMessage();
+                    return;
+                }
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += 2;
+        }
+        if ( b.queryfile != null ) {
+            b.run();
+        } else {
+            printHelpMessage();
+        }
+    }
+}
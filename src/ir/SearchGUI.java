@@ -283,7 +283,7 @@ public class SearchGUI extends JFrame {
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
+            String description = i + ". " + displayableFileName( engine.index.docs.name( results.get(i).docID ));
             if ( queryType == QueryType.RANKED_QUERY ) {
                 description += "   " + String.format( "%.5f", results.get(i).score );
             }
@@ -31,12 +31,41 @@ public class Searcher {
     /** add: intialize the HITSRanker only one time in Engine */
     HITSRanker hr;
 
+    /** The docID sets of recently used terms are cached up to this many bytes. */
+    static final long BITMAP_CACHE_BYTES = 32L << 20;
+
+    /** The cached docID sets, least recently used first */
+    private LinkedHashMap<String, DocBitmap> bitmaps = new LinkedHashMap<String, DocBitmap>(16, 0.75f, true);
+
+    /** The number of bytes used by the cached docID sets */
+    private long bitmapBytes = 0;
+
+    /** If positive, ranked retrieval returns only the top k documents */
+    int topK = 0;
+
+    /** The impact-ordered postings searched by top-k tf-idf and combination queries, or null */
+    ImpactIndex impacts;
+
+    /** Top-k queries over the impacts score this many times k documents exactly, and keep the top k */
+    int impactCandidates = 4;
+
+    /** The weight of the tf-idf score in the combination with pagerank */
+    static final double COMBINATION_WEIGHT = 0.5;
+
+    /** The results of recent queries, or null if they are not kept */
+    QueryCache cache;
+
+    /** The score accumulator of every searching thread */
+    private final ThreadLocal<ScoreAccumulator> accumulators = ThreadLocal.withInitial(ScoreAccumulator::new);
+
     /**
      * add: build docIDs, need to add to Engine to initialize
      */
     public void buildNameToID() {
-        for (Map.Entry<Integer, String> entry: index.docNames.entrySet()) {
-            docIDs.put(getFileName(entry.getValue()), entry.getKey());
+        for (int docID = 0; docID < index.docs.limit(); docID++) {
+            if (index.docs.contains(docID)) {
+                docIDs.put(getFileName(index.docs.name(docID)), docID);
+            }
         }
     }
 
@@ -59,6 +88,25 @@ public class Searcher {
      *  @return A postings list representing the result of the query.
      */
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType ) {
+        if (cache == null) {
+            return evaluate(query, queryType, rankingType);
+        }
+        // the generation is read first, so a result found while the index changes is dropped
+        int generation = index.docs.version();
+        QueryCache.Key key = new QueryCache.Key(query, queryType, rankingType, topK);
+        PostingsList result = cache.get(key, generation, query);
+        if (result != null) {
+            return result;
+        }
+        ArrayList<QueryTerm> terms = query.queryterm;
+        result = evaluate(query, queryType, rankingType);
+        if (result != null) {
+            cache.put(key, generation, result, query.queryterm != terms ? query.queryterm : null);
+        }
+        return result;
+    }
+
+    private PostingsList evaluate( Query query, QueryType queryType, RankingType rankingType ) {
         switch(queryType) {
             case INTERSECTION_QUERY:
                 return intersection_query(query);
@@ -113,15 +161,16 @@ public class Searcher {
         HashSet<String> baseSet = new HashSet<String>();
 
         //calulate root set first
-        PostingsList tList = null;
         for (Query.QueryTerm qterm: query.queryterm) {
             String curTerm = qterm.term;
             if (uniqueTerm.contains(curTerm)) {
                 continue;
             }
-            tList = index.getPostings(curTerm);
-            for(PostingsEntry entry: tList.list){
-                baseSet.add(getFileName(index.docNames.get(entry.docID)));
+            PostingsCursor cursor = index.cursor(curTerm);
+            if (cursor != null) {
+                for (int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+                    baseSet.add(getFileName(index.docs.name(docID)));
+                }
             }
             uniqueTerm.add(curTerm);
         }
@@ -197,39 +246,65 @@ public class Searcher {
 
         // rank search new query
         HashSet<String> uniqueTerm = new HashSet<>();
-        //for all returned docs: docID to entry
-        HashMap<Integer, PostingsEntry> curMap = new HashMap();
 
         query.queryterm = newQueryTerms;
 
+        //top-k search over the impact-ordered postings finds the k documents to score
+        int[] candidates = null;
+        if (topK > 0 && impacts != null && (rankingType == RankingType.TF_IDF || rankingType == RankingType.COMBINATION)) {
+            candidates = impact_search(newQueryTerms, rankingType);
+        }
+
+        //top-k tf-idf search skips the documents that cannot make it
+        if (candidates == null && topK > 0 && rankingType == RankingType.TF_IDF) {
+            PostingsList top = wand_search(newQueryTerms);
+            if (top != null) {
+                return top;
+            }
+        }
+
+        //for all returned docs: the score by docID, summed term at a time
+        ScoreAccumulator acc = accumulators.get();
+        acc.reset(index.docs.limit());
+
         for (QueryTerm qterm: newQueryTerms) {
             String curTerm = qterm.term;
             if (uniqueTerm.contains(curTerm)) {
                 continue;
             }
-            //the Postingslist of current term
-            PostingsList tList = index.getPostings(curTerm);
+            //the postings of current term, read through a cursor (positions are not needed)
+            PostingsCursor cursor = index.cursor(curTerm);
 
             // compute tf and idf of the query vector
             //int tf_query = query.get_tf(curTerm);
             // suppose there are no repeats
             int tf_query = 1;
             double idf;
-            if (tList == null) {
+            if (cursor == null) {
                 //begin spell correction
                 return null;
             } else {
-                idf = Math.log10(index.docNames.size() / tList.size());
+                idf = Math.log10((double)index.docs.size() / cursor.size());
             }
 
-            for (int j = 0; j < tList.size(); j++) {
-                int curDocID = tList.get(j).docID;
-                if (curMap.containsKey(curDocID)) {
-                    //also consider the weight from the relevance feedback
-                    curMap.get(curDocID).score += qterm.weight * tf_query * idf * tList.get(j).get_tf();
-                } else {
-                    tList.get(j).score += qterm.weight * tf_query * idf * tList.get(j).get_tf();
-                    curMap.put(curDocID, tList.get(j));
+            //also consider the weight from the relevance feedback
+            //the query weight is weight * tf * idf, and the document weight tf * idf as in
+            //the norms of the documents, so that the score divided by the norm is the cosine
+            double weight = qterm.weight * tf_query * idf * idf;
+            if (candidates == null) {
+                for (int curDocID = cursor.nextDoc(); curDocID != PostingsCursor.NO_MORE_DOCS; curDocID = cursor.nextDoc()) {
+                    acc.add(curDocID, weight * cursor.freq());
+                }
+            } else {
+                //only the candidates, in docID order
+                int curDocID = -1;
+                for (int candidate : candidates) {
+                    if (curDocID < candidate) {
+                        curDocID = cursor.advance(candidate);
+                    }
+                    if (curDocID == candidate) {
+                        acc.add(curDocID, weight * cursor.freq());
+                    }
                 }
             }
             uniqueTerm.add(curTerm);
@@ -237,41 +312,118 @@ public class Searcher {
 
 
         if (rankingType == RankingType.TF_IDF) {
-            for (int docID: curMap.keySet()) {
-                // calculate the tf-idf score
-                curMap.get(docID).score /= index.docLengths.get(docID);
+            for (int i = 0; i < acc.size(); i++) {
+                // calculate the tf-idf score: the cosine similarity if the norms of the documents are known
+                int docID = acc.docID(i);
+                acc.set(docID, acc.get(docID) / index.docs.normalizer(docID));
             }
         }
         else if (rankingType == RankingType.PAGERANK) {
-            for (int docID: curMap.keySet()) {
+            for (int i = 0; i < acc.size(); i++) {
                 // calculate the combined score (tf-idf and pagerank)
                 // if docID is not in PR map add 0
-                curMap.get(docID).score = (PageRank_map.containsKey(docID))? PageRank_map.get(docID):0;
+                int docID = acc.docID(i);
+                Double pr = PageRank_map.get(docID);
+                acc.set(docID, (pr != null) ? pr : 0);
             }
         }
         else if(rankingType == RankingType.COMBINATION){
             // there might be better ways to combine two factors
-            double combination = 0.5;
-            for (int docID: curMap.keySet()) {
+            double combination = COMBINATION_WEIGHT;
+            for (int i = 0; i < acc.size(); i++) {
                 // calculate the tf-idf score
-                curMap.get(docID).score /= index.docLengths.get(docID);
+                int docID = acc.docID(i);
+                double score = acc.get(docID) / index.docs.normalizer(docID);
                 // calculate the combined score (tf-idf and pagerank)
-                if(PageRank_map.containsKey(docID)){
-                    curMap.get(docID).score = combination * (curMap.get(docID).score) + (1 - combination) * PageRank_map.get(docID);
+                Double pr = PageRank_map.get(docID);
+                if(pr != null){
+                    acc.set(docID, combination * score + (1 - combination) * pr);
                 }
                 else{
-                    curMap.get(docID).score = combination * (curMap.get(docID).score);
+                    acc.set(docID, combination * score);
                 }
             }
         }
 
+        //new entries sorted by score (the top k only, picked with a bounded heap, if topK is set)
+        return acc.ranked(topK);
+    }
 
-        //convert Hashmap to ArrayList and sort the documents based on the scores
-        ArrayList<PostingsEntry> list = new ArrayList(curMap.values());
-        Collections.sort(list);
-        PostingsList result = new PostingsList(list);
+    /**
+     * tf-idf top-k search with Block-Max WAND (see BlockMaxWand), which gives
+     * the same documents and scores as scoring every document. Returns null
+     * if a term has no score bounds (or is not in the index), or a weight is
+     * negative, so that every document has to be scored.
+     */
+    private PostingsList wand_search(ArrayList<QueryTerm> queryTerms) {
+        ArrayList<PostingsCursor> cursors = new ArrayList<>();
+        ArrayList<ScoreBounds> bounds = new ArrayList<>();
+        ArrayList<Double> weights = new ArrayList<>();
+        HashSet<String> uniqueTerm = new HashSet<>();
+        for (QueryTerm qterm: queryTerms) {
+            if (!uniqueTerm.add(qterm.term)) {
+                continue;
+            }
+            ScoreBounds b = index.scoreBounds(qterm.term);
+            PostingsCursor cursor = (b == null) ? null : index.cursor(qterm.term);
+            if (cursor == null) {
+                return null;
+            }
+            // the same weight as in rank_search
+            int tf_query = 1;
+            double idf = Math.log10((double)index.docs.size() / cursor.size());
+            double weight = qterm.weight * tf_query * idf * idf;
+            if (!(weight >= 0) || Double.isInfinite(weight)) {
+                return null;
+            }
+            cursors.add(cursor);
+            bounds.add(b);
+            weights.add(weight);
+        }
+        double[] w = new double[weights.size()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = weights.get(i);
+        }
+        return BlockMaxWand.topK(cursors.toArray(new PostingsCursor[0]), bounds.toArray(new ScoreBounds[0]), w, index.docs, topK);
+    }
 
-        return result;
+
+    /**
+     * top-k search over the impact-ordered postings (see ImpactIndex), which
+     * reads the highest impacts first and stops once the top k is settled.
+     * Returns the docIDs of the top k * impactCandidates by quantized score,
+     * in docID order, to be scored as in rank_search, or null if the impacts
+     * are stale, a term has no impacts, or a weight is negative, so that
+     * every document has to be scored.
+     */
+    private int[] impact_search(ArrayList<QueryTerm> queryTerms, RankingType rankingType) {
+        if (!impacts.isCurrent()) {
+            return null;
+        }
+        ArrayList<QueryTerm> unique = new ArrayList<>();
+        HashSet<String> uniqueTerm = new HashSet<>();
+        for (QueryTerm qterm: queryTerms) {
+            if (uniqueTerm.add(qterm.term)) {
+                unique.add(qterm);
+            }
+        }
+        int[] termIDs = new int[unique.size()];
+        double[] weights = new double[unique.size()];
+        for (int i = 0; i < termIDs.length; i++) {
+            termIDs[i] = impacts.termID(unique.get(i).term);
+            // the idf of the query and of the document weight are in the impacts; tf_query is 1 as in rank_search
+            weights[i] = unique.get(i).weight;
+            if (rankingType == RankingType.COMBINATION) {
+                weights[i] *= COMBINATION_WEIGHT;
+            }
+            if (termIDs[i] < 0 || !(weights[i] >= 0) || Double.isInfinite(weights[i])) {
+                return null;
+            }
+        }
+        if (rankingType == RankingType.COMBINATION) {
+            return impacts.topK(termIDs, weights, pageRanks, 1 - COMBINATION_WEIGHT, topK * impactCandidates, accumulators.get());
+        }
+        return impacts.topK(termIDs, weights, null, 0, topK * impactCandidates, accumulators.get());
     }
 
 
@@ -282,6 +434,9 @@ public class Searcher {
     /** Mapping from file docID to pagerank */
     HashMap<Integer, Double> PageRank_map = new HashMap<Integer, Double>();
 
+    /** The pagerank of every document by docID (0 if it has none), for the impact-ordered search */
+    private double[] pageRanks;
+
     public void BuildPageRank() {
         String fileName = "PR/pagerank";
         BufferedReader reader = null;
@@ -293,6 +448,15 @@ public class Searcher {
                 PageRank_map.put(docIDs.get(strs[0]), Double.valueOf(strs[1]));
             }
             reader.close();
+            pageRanks = new double[index.docs.limit()];
+            for (Map.Entry<Integer, Double> e : PageRank_map.entrySet()) {
+                if (e.getKey() != null && e.getKey() < pageRanks.length) {
+                    pageRanks[e.getKey()] = e.getValue();
+                }
+            }
+            if (cache != null) {
+                cache.clear();
+            }
             System.out.println("PageRank loaded!");
         } catch (Exception e) {
             e.printStackTrace();
@@ -304,81 +468,137 @@ public class Searcher {
      *  intersection_search
      */
     public PostingsList intersection_query(Query query){
-        ArrayList<PostingsList> all_lists = new ArrayList<PostingsList>();
-
         for (QueryTerm qt: query.queryterm) {
-            // Skip the term if it doesn't contain an asterisk *
-            if (!qt.term.contains("*")) {
-                all_lists.add(index.getPostings(qt.term));
-                continue;
+            if (qt.term.contains("*")) {
+                return bitmap_intersection_query(query);
             }
+        }
 
-            String extended_token = "^".concat(qt.term).concat("$"); // for the later matching by regex
-
-            HashSet<String> TermCandidates = kgIndex.getWCTokens(extended_token);
-            System.out.println(qt.term + ": " + TermCandidates.size());
-            ArrayList<PostingsList> SortList = new ArrayList<>();
-            for (String candidate : TermCandidates) {
-                SortList.add(index.getPostings(candidate));
+        // Walk through the postings of all terms at once, rarest term first
+        PostingsCursor[] cursors = new PostingsCursor[query.queryterm.size()];
+        for (int k = 0; k < cursors.length; k++) {
+            cursors[k] = index.cursor(query.queryterm.get(k).term);
+            if (cursors[k] == null) {
+                return null;
             }
-            Collections.sort(SortList);
+        }
+        if (cursors.length == 0) {
+            return null;
+        }
+        Arrays.sort(cursors, Comparator.comparingInt(PostingsCursor::size));
+        PostingsList answer = new PostingsList(new ArrayList<PostingsEntry>(cursors[0].size()));
+        for (int docID = nextMatch(cursors, cursors[0].nextDoc()); docID != PostingsCursor.NO_MORE_DOCS; docID = nextMatch(cursors, cursors[0].nextDoc())) {
+            answer.addEntry(docID);
+        }
+        return answer;
+    }
 
-            PostingsList MergeList = SortList.get(0);
-            if(SortList.size() > 1){
-                for(int i = 1; i < SortList.size();i++){
-                    MergeList = MergeList.Merge(SortList.get(i));
+    /**
+     *  Intersection query with wildcards, evaluated on docID sets. The sets
+     *  of the candidates of a wildcard term are united, and the sets of all
+     *  terms are then intersected, smallest first.
+     */
+    private PostingsList bitmap_intersection_query(Query query){
+        ArrayList<DocBitmap> sets = new ArrayList<DocBitmap>();
+        for (QueryTerm qt: query.queryterm) {
+            DocBitmap set;
+            if (!qt.term.contains("*")) {
+                set = docBitmap(qt.term);
+            } else {
+                String extended_token = "^".concat(qt.term).concat("$"); // for the later matching by regex
+                HashSet<String> TermCandidates = kgIndex.getWCTokens(extended_token);
+                ArrayList<DocBitmap> union = new ArrayList<DocBitmap>();
+                for (String candidate : TermCandidates) {
+                    DocBitmap s = docBitmap(candidate);
+                    if (s.cardinality() > 0) {
+                        union.add(s);
+                    }
                 }
+                set = union.isEmpty() ? null : DocBitmap.or(union);
             }
-            all_lists.add(MergeList);
+            if (set == null || set.cardinality() == 0) {
+                return null;
+            }
+            sets.add(set);
+        }
+        sets.sort(Comparator.comparingInt(DocBitmap::cardinality));
+        DocBitmap result = sets.get(0);
+        for (int i = 1; i < sets.size() && result.cardinality() > 0; i++) {
+            result = result.and(sets.get(i));
         }
+        return result.toPostingsList();
+    }
 
-        if(all_lists.size() == 1){
-            return all_lists.get(0);
+    /**
+     *  Returns the set of documents containing a term (empty if the term
+     *  is not in the index). The sets are built from the docIDs of a
+     *  cursor when first needed, and the least recently used ones are
+     *  dropped when the cache is full.
+     */
+    synchronized DocBitmap docBitmap(String term){
+        DocBitmap set = bitmaps.get(term);
+        if (set != null) {
+            return set;
         }
-        else{
-            PostingsList result = null;
-            if(!all_lists.contains(null)){
-                result = all_lists.get(0);
-                for(int i = 1; i < all_lists.size(); i++){
-                    result = intersect(result, all_lists.get(i));
-                }
+        PostingsCursor cursor = index.cursor(term);
+        set = cursor == null ? DocBitmap.of(new PostingsList()) : DocBitmap.of(cursor);
+        bitmaps.put(term, set);
+        bitmapBytes += set.bytes();
+        Iterator<DocBitmap> it = bitmaps.values().iterator();
+        while (bitmapBytes > BITMAP_CACHE_BYTES && it.hasNext()) {
+            DocBitmap old = it.next();
+            if (old != set) {
+                bitmapBytes -= old.bytes();
+                it.remove();
             }
-            return result;
         }
+        return set;
     }
 
-    public PostingsList intersect (PostingsList p1, PostingsList p2){
-        PostingsList answer = new PostingsList();
-        int i = 0;
-        int j = 0;
-
-        while((i < p1.size()) && (j < p2.size())){
-            if(p1.get(i).docID == p2.get(j).docID){
-                answer.addEntry(p1.get(i));
-                i++;
-                j++;
+    /**
+     *  Returns the first docID from @code{candidate} on that all cursors
+     *  have, and leaves all cursors on it (or returns NO_MORE_DOCS). The
+     *  first cursor must be on @code{candidate}, and should be the one with
+     *  the fewest documents. Whenever another cursor has no such docID,
+     *  the first cursor advances to the docID found there instead.
+     */
+    private static int nextMatch(PostingsCursor[] c, int candidate){
+        int k = 1;
+        while (candidate != PostingsCursor.NO_MORE_DOCS && k < c.length) {
+            int docID = c[k].docID();
+            if (docID < candidate) {
+                docID = c[k].advance(candidate);
+            }
+            if (docID == candidate) {
+                k++;
+            } else if (docID == PostingsCursor.NO_MORE_DOCS) {
+                return docID;
+            } else {
+                candidate = c[0].advance(docID);
+                k = 1;
             }
-            else if(p1.get(i).docID < p2.get(j).docID){ i++; }
-            else{j++;}
         }
-        return answer;
+        return candidate;
     }
 
-
     /**
      *  phrase_search
      */
     public PostingsList phrase_query(Query query){
-        ArrayList<PostingsList> all_lists = new ArrayList<PostingsList>();
-
-        for (QueryTerm qt: query.queryterm) {
+        int m = query.queryterm.size();
+        PostingsCursor[] cursors = new PostingsCursor[m];
+        for (int k = 0; k < m; k++) {
+            String term = query.queryterm.get(k).term;
             // Skip the term if it doesn't contain an asterisk *
-            if (!qt.term.contains("*")) {
-                all_lists.add(index.getPostings(qt.term));
+            if (!term.contains("*")) {
+                cursors[k] = index.cursor(term);
+                if (cursors[k] == null) {
+                    return null;
+                }
                 continue;
             }
 
-            String extended_token = "^".concat(qt.term).concat("$"); // for the later matching by regex
+            String extended_token = "^".concat(term).concat("$"); // for the later matching by regex
 
             HashSet<String> TermCandidates = kgIndex.getWCTokens(extended_token);
 
@@ -386,6 +606,9 @@ public class Searcher {
             for (String candidate : TermCandidates) {
                 SortList.add(index.getPostings(candidate));
             }
+            if (SortList.isEmpty()) {
+                return null;
+            }
             Collections.sort(SortList);
 
             PostingsList MergeList = SortList.get(0);
@@ -394,59 +617,54 @@ public class Searcher {
                     MergeList = MergeList.PhraseMerge(SortList.get(i));
                 }
             }
-            all_lists.add(MergeList);
+            cursors[k] = MergeList.cursor();
         }
-
-        if(all_lists.size() == 1){
-            return all_lists.get(0);
+        if (m == 0) {
+            return null;
         }
-        else{
-            PostingsList result = null;
-            if(!all_lists.contains(null)){
-                result = all_lists.get(0);
-                for(int i = 1; i < all_lists.size(); i++){
-                    result = phrase_intersect(result, all_lists.get(i));
-                }
-            }
-            return result;
-        }
-    }
 
-    private PostingsList phrase_intersect(PostingsList p1, PostingsList p2){
+        // Find the documents with all terms, rarest term first. Only the
+        // positions in those documents are decoded.
+        PostingsCursor[] byCost = cursors.clone();
+        Arrays.sort(byCost, Comparator.comparingInt(PostingsCursor::size));
         PostingsList answer = new PostingsList();
-        int i = 0;
-        int j = 0;
-
-        while((i < p1.size()) && (j < p2.size())){
-            if(p1.get(i).docID == p2.get(j).docID){
-                PostingsEntry resultEntry = intersect_position(p1.get(i),p2.get(j));
-                if(resultEntry.size() != 0){
-                    answer.addEntry(resultEntry);
-                }
-                i++;
-                j++;
+        for (int docID = nextMatch(byCost, byCost[0].nextDoc()); docID != PostingsCursor.NO_MORE_DOCS; docID = nextMatch(byCost, byCost[0].nextDoc())) {
+            int[] positions = cursors[0].positions();
+            int n = positions.length;
+            for (int k = 1; k < m && n > 0; k++) {
+                int[] next = cursors[k].positions();
+                n = follow(positions, n, next);
+                positions = next;
+            }
+            if (n > 0) {
+                answer.addEntry(new PostingsEntry(docID, Arrays.copyOf(positions, n), n));
             }
-            else if(p1.get(i).docID < p2.get(j).docID){ i++; }
-            else{ j++; }
         }
         return answer;
     }
 
-    private PostingsEntry intersect_position(PostingsEntry e1, PostingsEntry e2){
-        PostingsEntry answer = new PostingsEntry(e1.docID);
+    /**
+     *  Keeps the positions in @code{positions2} that directly follow one of
+     *  the first @code{n1} positions in @code{positions1}. They are moved
+     *  to the front of @code{positions2}, and their number is returned.
+     */
+    private static int follow(int[] positions1, int n1, int[] positions2){
+        int n2 = positions2.length;
+        int n = 0;
         int i = 0;
         int j = 0;
 
-        while((i < e1.size()) && (j < e2.size())){
-            if(e1.get(i) == e2.get(j) - 1){
-                answer.addPosition(e2.get(j));
+        while((i < n1) && (j < n2)){
+            int next = positions2[j] - 1;
+            if(positions1[i] == next){
+                positions2[n++] = positions2[j];
                 i++;
                 j++;
             }
-            else if(e1.get(i) < e2.get(j) - 1){ i++; }
+            else if(positions1[i] < next){ i++; }
             else{ j++; }
         }
-        return answer;
+        return n;
     }
 
 
@@ -112,7 +112,7 @@ public class SpellChecker {
 
         long startTime = System.currentTimeMillis();
         int K = kgIndex.getK();
-        double nDocs = index.docNames.size();
+        double nDocs = index.docs.size();
         // store all candidates list for all query terms
         List<List<KGramStat>> qCorrections = new ArrayList();
 
@@ -122,7 +122,7 @@ public class SpellChecker {
             List<KGramStat> TermCorrection = new ArrayList<KGramStat>();
 
             // if that term has at least one doc
-            if (index.getPostings(token) != null){
+            if (index.docFrequency(token) > 0){
                 TermCorrection.add(new KGramStat(token, 2.0));
                 qCorrections.add(TermCorrection);
                 continue;
@@ -167,7 +167,7 @@ public class SpellChecker {
                     double score = 0;
                     score += (MAX_EDIT_DISTANCE - editDist)/(double)MAX_EDIT_DISTANCE;
                     score += JaccardValue;
-                    score += index.getPostings(candidate).size() / nDocs;
+                    score += index.docFrequency(candidate) / nDocs;
                     TermCorrection.add(new KGramStat(candidate, score));
                 }
             }
@@ -201,9 +201,9 @@ public class SpellChecker {
      *  to limit corrected phrases.
      */
     private List<KGramStat> mergeCorrections(List<List<KGramStat>> qCorrections, int limit) {
-        double nDocs = index.docNames.size();
-        // Map token to its posting list
-        Map<String, PostingsList> pListMap = new HashMap<String, PostingsList>();
+        double nDocs = index.docs.size();
+        // Map token to the set of documents it occurs in
+        Map<String, DocBitmap> pListMap = new HashMap<String, DocBitmap>();
 
         // merge begin from the first term candidates list
         Collections.sort(qCorrections.get(0));
@@ -211,7 +211,7 @@ public class SpellChecker {
         int maxMergeResultSize = limit * limit;
 
         for (KGramStat s: mergedList){
-            pListMap.put(s.token, index.getPostings(s.token));
+            pListMap.put(s.token, docSet(s.token));
         }
 
         // merge the first two candidates list first, if size < maxSize, merge the result with the next candidates list
@@ -219,18 +219,25 @@ public class SpellChecker {
             List<KGramStat> workList = new ArrayList<KGramStat>();
             List<KGramStat> toMergeList = qCorrections.get(t);//the second list to add to the merged list(work list)
 
+            // the documents of each candidate are read once
+            DocBitmap[] sets2 = new DocBitmap[toMergeList.size()];
+            for (int j = 0; j < sets2.length; j++){
+                sets2[j] = docSet(toMergeList.get(j).token);
+            }
+
             for (KGramStat s1: mergedList){
-                PostingsList pList1 = pListMap.get(s1.token);
-                for (KGramStat s2: toMergeList){
-                    PostingsList pList2 = index.getPostings(s2.token);
-                    PostingsList intersectPList = pList1.intersect(pList2);
+                DocBitmap set1 = pListMap.get(s1.token);
+                for (int j = 0; j < sets2.length; j++){
+                    KGramStat s2 = toMergeList.get(j);
+                    DocBitmap intersectSet = set1.and(sets2[j]);
+                    int n = intersectSet.cardinality();
                     // link the two token into one query word
                     String token = s1.token + " " + s2.token;
                     // if the return doc number > 0, add the query to the merged list
-                    if (intersectPList.size() > 0){
-                        double score = s1.score + s2.score + intersectPList.size() / nDocs;
+                    if (n > 0){
+                        double score = s1.score + s2.score + n / nDocs;
                         //if (score < 0.0) score = 0.0;
-                        pListMap.put(token, intersectPList);
+                        pListMap.put(token, intersectSet);
                         workList.add(new KGramStat(token, score));
                     }
                 }
@@ -250,4 +257,14 @@ public class SpellChecker {
     }
 
 
+    /**
+     *  Returns the set of documents a term occurs in (empty if the term is
+     *  not in the index), read with a cursor so the positions are skipped.
+     */
+    private DocBitmap docSet(String token) {
+        PostingsCursor cursor = index.cursor(token);
+        return cursor == null ? DocBitmap.of(new PostingsList()) : DocBitmap.of(cursor);
+    }
+
+
 }
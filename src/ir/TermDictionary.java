@@ -0,0 +1,431 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ *   A sorted dictionary of the terms of a persistent index, which maps
+ *   every term to the place of its postings in the data file and to its
+ *   document frequency.
+ *
+ *   The terms are stored in UTF-8 in lexicographic order, in blocks of
+ *   @code{BLOCK_SIZE}. The first term of a block is stored in full, and
+ *   every other term as the length of the prefix it shares with the term
+ *   before it, followed by the rest of its bytes (front coding). Every
+ *   term is followed by the gap from the end of the previous term's data
+ *   record to the start of its own (its position for the first term of a
+ *   block), the length of its encoded postings and its document frequency.
+ *   All numbers are in variable-byte code, as in @code{PostingsCodec}.
+ *
+ *   A lookup finds the block by binary search on the first terms of the
+ *   blocks, and then decodes at most one block. Since the terms are
+ *   sorted, all terms with a given prefix, or in a given range, can be
+ *   listed in order.
+ *
+ *   A dictionary is immutable once built, and can be shared by threads.
+ */
+public class TermDictionary implements Iterable<TermDictionary.Term> {
+
+    /** The number of terms in a block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** The first four bytes of a dictionary file. */
+    static final int MAGIC = 0x46435444;
+
+    /** The encoded terms. */
+    private final byte[] data;
+
+    /** The offset in @code{data} of every block. */
+    private final int[] blocks;
+
+    /** The number of terms. */
+    private final int size;
+
+
+    /**
+     *  A term and the place of its postings.
+     */
+    public static class Term {
+        /** The term. */
+        public final String term;
+
+        /** The position of the term's record (the term followed by its postings) in the data file. */
+        public final long pos;
+
+        /** The number of bytes of encoded postings. */
+        public final int length;
+
+        /** The number of documents containing the term. */
+        public final int df;
+
+        Term( String term, long pos, int length, int df ) {
+            this.term = term;
+            this.pos = pos;
+            this.length = length;
+            this.df = df;
+        }
+    }
+
+
+    private TermDictionary( byte[] data, int[] blocks, int size ) {
+        this.data = data;
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+
+    /** The number of terms in the dictionary. */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     *  Looks up a term.
+     *
+     *  @return The term and the place of its postings, or null if the term
+     *  is not in the dictionary.
+     */
+    public Term lookup( String term ) {
+        byte[] key = term.getBytes( StandardCharsets.UTF_8 );
+        int b = findBlock( key );
+        if ( b < 0 ) {
+            return null;
+        }
+        Decoder d = new Decoder( b );
+        while ( d.next() ) {
+            int c = d.compareTo( key );
+            if ( c == 0 ) {
+                return new Term( term, d.pos, d.length, d.df );
+            } else if ( c > 0 ) {
+                break;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns all terms in lexicographic order.
+     */
+    public Iterator<Term> iterator() {
+        return range( null, null ).iterator();
+    }
+
+
+    /**
+     *  Returns the terms @code{t} with @code{from <= t < to}, in
+     *  lexicographic order. A null bound means no bound.
+     */
+    public Iterable<Term> range( String from, String to ) {
+        byte[] start = (from == null) ? null : from.getBytes( StandardCharsets.UTF_8 );
+        byte[] end = (to == null) ? null : to.getBytes( StandardCharsets.UTF_8 );
+        return () -> new Scan( start, end, null );
+    }
+
+
+    /**
+     *  Returns the terms that start with @code{prefix}, in lexicographic order.
+     */
+    public Iterable<Term> prefix( String prefix ) {
+        byte[] p = prefix.getBytes( StandardCharsets.UTF_8 );
+        return () -> new Scan( p, null, p );
+    }
+
+
+    /**
+     *  Returns the last block whose first term is not greater than
+     *  @code{key}, or -1 if there is none.
+     */
+    private int findBlock( byte[] key ) {
+        int lo = 0;
+        int hi = blocks.length - 1;
+        int found = -1;
+        int[] pos = new int[1];
+        while ( lo <= hi ) {
+            int mid = (lo + hi) >>> 1;
+            pos[0] = blocks[mid];
+            int n = PostingsCodec.readVByte( data, pos );
+            if ( compare( data, pos[0], n, key, key.length ) <= 0 ) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     *  Compares two byte sequences as unsigned bytes. For UTF-8, this is the
+     *  order of the code points, and for terms without supplementary
+     *  characters the order of @code{String.compareTo}.
+     */
+    static int compare( byte[] a, int aOff, int aLen, byte[] b, int bLen ) {
+        int n = Math.min( aLen, bLen );
+        for ( int i=0; i<n; i++ ) {
+            int c = (a[aOff + i] & 0xff) - (b[i] & 0xff);
+            if ( c != 0 ) {
+                return c;
+            }
+        }
+        return aLen - bLen;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Decodes the terms from the start of a block on.
+     */
+    private class Decoder {
+        /** The offset of the next term in @code{data}. */
+        final int[] off = new int[1];
+
+        /** The bytes of the current term. */
+        byte[] term = new byte[64];
+        int termLength = 0;
+
+        long pos;
+        int length;
+        int df;
+
+        /** The index of the current term. */
+        int index;
+
+        Decoder( int block ) {
+            off[0] = (block < blocks.length) ? blocks[block] : 0;
+            index = block * BLOCK_SIZE - 1;
+        }
+
+        /** Moves to the next term. @return false at the end of the dictionary. */
+        boolean next() {
+            if ( index + 1 >= size ) {
+                return false;
+            }
+            index++;
+            boolean first = index % BLOCK_SIZE == 0;
+            int prefix = first ? 0 : PostingsCodec.readVByte( data, off );
+            int suffix = PostingsCodec.readVByte( data, off );
+            if ( prefix + suffix > term.length ) {
+                term = Arrays.copyOf( term, 2 * (prefix + suffix) );
+            }
+            System.arraycopy( data, off[0], term, prefix, suffix );
+            off[0] += suffix;
+            long gap = readVLong( data, off );
+            pos = first ? gap : pos + termLength + length + gap;
+            termLength = prefix + suffix;
+            length = PostingsCodec.readVByte( data, off );
+            df = PostingsCodec.readVByte( data, off );
+            return true;
+        }
+
+        int compareTo( byte[] key ) {
+            return compare( term, 0, termLength, key, key.length );
+        }
+
+        boolean startsWith( byte[] p ) {
+            return termLength >= p.length && compare( term, 0, p.length, p, p.length ) == 0;
+        }
+
+        Term current() {
+            return new Term( new String( term, 0, termLength, StandardCharsets.UTF_8 ), pos, length, df );
+        }
+    }
+
+
+    /**
+     *  Lists the terms from a start term on, up to an end term or while
+     *  they have a given prefix.
+     */
+    private class Scan implements Iterator<Term> {
+        final Decoder d;
+        final byte[] end;
+        final byte[] prefix;
+        boolean ready;
+        boolean done;
+
+        Scan( byte[] start, byte[] end, byte[] prefix ) {
+            this.end = end;
+            this.prefix = prefix;
+            int b = (start == null) ? 0 : Math.max( 0, findBlock( start ));
+            d = new Decoder( b );
+            // Move to the first term not less than the start
+            while ( (ready = d.next()) && start != null && d.compareTo( start ) < 0 ) {
+            }
+            check();
+        }
+
+        private void check() {
+            if ( !ready || (end != null && d.compareTo( end ) >= 0) || (prefix != null && !d.startsWith( prefix ))) {
+                done = true;
+            }
+        }
+
+        public boolean hasNext() {
+            if ( !ready && !done ) {
+                ready = d.next();
+                check();
+            }
+            return ready && !done;
+        }
+
+        public Term next() {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return d.current();
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads a dictionary written by @code{write}.
+     */
+    public static TermDictionary read( File file ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( file + " is not a term dictionary" );
+            }
+            int size = in.readInt();
+            int[] blocks = new int[in.readInt()];
+            for ( int i=0; i<blocks.length; i++ ) {
+                blocks[i] = in.readInt();
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully( data );
+            return new TermDictionary( data, blocks, size );
+        }
+    }
+
+
+    /**
+     *  Writes the dictionary to a file.
+     */
+    public void write( File file ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( size );
+            out.writeInt( blocks.length );
+            for ( int b : blocks ) {
+                out.writeInt( b );
+            }
+            out.writeInt( data.length );
+            out.write( data );
+        }
+    }
+
+
+    /**
+     *  Reads a number written by @code{Builder.writeVLong} at @code{pos[0]},
+     *  and advances @code{pos[0]} past it.
+     */
+    static long readVLong( byte[] data, int[] pos ) {
+        int p = pos[0];
+        long b = data[p++];
+        long v = b & 0x7f;
+        for ( int shift=7; b < 0; shift+=7 ) {
+            b = data[p++];
+            v |= (b & 0x7f) << shift;
+        }
+        pos[0] = p;
+        return v;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Builds a dictionary from terms added in lexicographic order, with
+     *  data records in increasing order of position.
+     */
+    public static class Builder {
+        private byte[] buf = new byte[1 << 12];
+        private int len = 0;
+        private int[] blocks = new int[64];
+        private int size = 0;
+
+        private byte[] last = new byte[0];
+        private long lastEnd = 0;
+
+        /**
+         *  Adds a term, whose record (the term followed by @code{length}
+         *  bytes of postings) starts at @code{pos} in the data file.
+         */
+        public void add( String term, long pos, int length, int df ) {
+            byte[] t = term.getBytes( StandardCharsets.UTF_8 );
+            if ( size > 0 && (compare( t, 0, t.length, last, last.length ) <= 0 || pos < lastEnd) ) {
+                throw new IllegalArgumentException( "Terms must be added in order: " + term );
+            }
+            boolean first = size % BLOCK_SIZE == 0;
+            if ( first ) {
+                if ( size / BLOCK_SIZE == blocks.length ) {
+                    blocks = Arrays.copyOf( blocks, 2 * blocks.length );
+                }
+                blocks[size / BLOCK_SIZE] = len;
+                ensure( 5 + t.length + 20 );
+                writeVByte( t.length );
+                System.arraycopy( t, 0, buf, len, t.length );
+                len += t.length;
+                writeVLong( pos );
+            } else {
+                int prefix = 0;
+                int n = Math.min( t.length, last.length );
+                while ( prefix < n && t[prefix] == last[prefix] ) {
+                    prefix++;
+                }
+                ensure( 10 + t.length - prefix + 20 );
+                writeVByte( prefix );
+                writeVByte( t.length - prefix );
+                System.arraycopy( t, prefix, buf, len, t.length - prefix );
+                len += t.length - prefix;
+                writeVLong( pos - lastEnd );
+            }
+            writeVByte( length );
+            writeVByte( df );
+            last = t;
+            lastEnd = pos + t.length + length;
+            size++;
+        }
+
+        /** Returns the dictionary of the terms added so far. */
+        public TermDictionary build() {
+            int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            return new TermDictionary( Arrays.copyOf( buf, len ), Arrays.copyOf( blocks, numBlocks ), size );
+        }
+
+        private void ensure( int n ) {
+            if ( len + n > buf.length ) {
+                buf = Arrays.copyOf( buf, Math.max( 2 * buf.length, len + n ));
+            }
+        }
+
+        private void writeVByte( int v ) {
+            writeVLong( v & 0xffffffffL );
+        }
+
+        private void writeVLong( long v ) {
+            while ( (v & ~0x7fL) != 0 ) {
+                buf[len++] = (byte)(v | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+    }
+}
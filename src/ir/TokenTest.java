@@ -21,6 +21,12 @@ public class TokenTest {
     boolean remove_punctuation = false;
     String patternsfile = null;
     String filename = null;
+    boolean mapped = false;
+    boolean timing = false;
+
+    /** The number of bytes and tokens read so far. */
+    long bytes_read = 0;
+    long tokens_read = 0;
 
     /**
      *  Tokenizes and indexes the file @code{f}. If @code{f} is a directory,
@@ -39,14 +45,24 @@ public class TokenTest {
                 }
             } else {
                 try {
-                    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                    Tokenizer tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                    Tokenizer tok;
+                    if ( mapped ) {
+                        tok = new MappedTokenizer( f, case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                    } else {
+                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+                        tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                    }
                     int offset = 0;
                     PrintStream out = new PrintStream( System.out, true, "UTF-8" );
                     while ( tok.hasMoreTokens() ) { 
-                        out.println( tok.nextToken() );
+                        String token = tok.nextToken();
+                        tokens_read++;
+                        if ( !timing ) {
+                            out.println( token );
+                        }
                     }
-                    reader.close();
+                    bytes_read += f.length();
+                    tok.close();
                 } catch ( IOException e ) {
                     e.printStackTrace();
                 }
@@ -63,6 +79,8 @@ public class TokenTest {
         System.err.println( "  -rd : removes diacritics  (optional)" );
         System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
         System.err.println( "  -f <filename> : name of file or directory to be tokenized (mandatory)" );
+        System.err.println( "  -mm : reads the files through memory mapping, using MappedTokenizer (optional)" );
+        System.err.println( "  -t : prints the throughput instead of the tokens (optional)" );
     }
 
 
@@ -81,6 +99,12 @@ public class TokenTest {
             } else if ( args[i].equals( "-rp" )) {
                 t.remove_punctuation = true;
                 i++;
+            } else if ( args[i].equals( "-mm" )) {
+                t.mapped = true;
+                i++;
+            } else if ( args[i].equals( "-t" )) {
+                t.timing = true;
+                i++;
             } else if ( args[i].equals( "-f" )) {
                 i++;
                 if ( i<args.length ) {
@@ -106,7 +130,13 @@ public class TokenTest {
             }
         }
         if ( t.filename != null ) {
+            long startTime = System.nanoTime();
             t.processFiles( new File( t.filename ));
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            if ( t.timing ) {
+                System.err.println( String.format( "%d tokens, %.1f MB in %.2f seconds (%.1f MB/s)",
+                                                   t.tokens_read, t.bytes_read/1e6, seconds, t.bytes_read/1e6/seconds ));
+            }
         } else {
             printHelpMessage();
         }
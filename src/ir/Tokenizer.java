@@ -9,14 +9,10 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
+import java.util.ArrayDeque;
 import java.lang.System;
 
 
@@ -50,6 +46,12 @@ public class Tokenizer {
      */
     public static final int BUFFER_LENGTH = 100001;
 
+    /** At most this many buffers of closed tokenizers are kept for reuse. */
+    public static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Buffers of closed tokenizers, ready to be reused. */
+    private static final ArrayDeque<char[]> buffer_pool = new ArrayDeque<char[]>();
+
     /** The reader from where tokens are read. */
     Reader reader;
     
@@ -57,7 +59,7 @@ public class Tokenizer {
      *  Characters are read @code{BUFFER_LENGTH} characters at a
      *  time into @code{buf}.
      */
-    char[] buf = new char[BUFFER_LENGTH];
+    char[] buf;
 
     /** The current position in the buffer. */
     int ptr = 0;
@@ -65,14 +67,29 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
-    /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    /**
+     *  The next tokens to emit, as a ring of (start, length) pairs into
+     *  @code{queue_chars}. The queue is always emptied before new tokens
+     *  are read, so the same storage is reused for every token.
+     */
+    char[] queue_chars = new char[256];
+    int queue_chars_used = 0;
+    int[] queue_start = new int[16];
+    int[] queue_length = new int[16];
+    int queue_head = 0;
+    int queue_size = 0;
+
+    /** The view returned by @code{nextTokenView}. */
+    final CharSlice token_view = new CharSlice();
+
+    /** A view of the string that is matched against the patterns. */
+    final CharSlice candidate = new CharSlice();
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
-    /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    /** Finds the non-standard words (e-mail addresses, etc.), or null if there are no patterns. */
+    PatternSet.Finder patterns = null;
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -96,11 +113,40 @@ public class Tokenizer {
      */
     public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
         this.reader = reader;
+        if ( reader != null ) {
+            buf = acquireBuffer();
+        }
         this.case_folding = case_folding;
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = PatternSet.forFile( pattern_file ).finder();
+        }
+    }
+
+
+    /**
+     *  Takes a buffer from the pool, or allocates a new one.
+     */
+    private static char[] acquireBuffer() {
+        synchronized ( buffer_pool ) {
+            char[] b = buffer_pool.poll();
+            if ( b != null ) {
+                return b;
+            }
+        }
+        return new char[BUFFER_LENGTH];
+    }
+
+
+    /**
+     *  Returns a buffer to the pool.
+     */
+    private static void releaseBuffer( char[] b ) {
+        synchronized ( buffer_pool ) {
+            if ( buffer_pool.size() < MAX_POOLED_BUFFERS ) {
+                buffer_pool.push( b );
+            }
         }
     }
 
@@ -121,30 +167,6 @@ public class Tokenizer {
     }
 
 
-    /**
-     *  Read the patterns that match non-standard words  
-     */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
-        }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
-        }
-    }
-
-
     /** 
      *  Normalizes letters by converting to lower-case and possibly
      *  removing diacritics. This method is also used for checking
@@ -186,7 +208,7 @@ public class Tokenizer {
             readTokens();
             started_reading = true;
         }
-        if ( token_queue.size() == 0 ) 
+        if ( queue_size == 0 ) 
             return readTokens();
         else 
             return true;
@@ -198,14 +220,72 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
-                return null;
+        CharSequence token = nextTokenView();
+        return token == null ? null : token.toString();
+    }
+
+
+    /**
+     *  Returns the next token without creating a String for it.
+     *
+     *  @return a view of the next token, or @code{null} if there are no
+     *  more tokens. The view is reused, and is only valid until the next
+     *  call to @code{hasMoreTokens}, @code{nextToken} or @code{nextTokenView}.
+     */
+    public CharSequence nextTokenView() throws IOException {
+        if ( queue_size == 0 && !readTokens() ) {
+            return null;
         }
-        else {
-            return token_queue.remove( 0 );
+        token_view.set( queue_chars, queue_start[queue_head], queue_length[queue_head] );
+        queue_head = (queue_head + 1) % queue_start.length;
+        if ( --queue_size == 0 ) {
+            queue_head = 0;
+            queue_chars_used = 0;
+        }
+        return token_view;
+    }
+
+
+    /**
+     *  Adds a token (a range of the array @code{a}) to the queue.
+     */
+    void queueToken( char[] a, int start, int length ) {
+        if ( queue_chars_used + length > queue_chars.length ) {
+            queue_chars = Arrays.copyOf( queue_chars, Math.max( 2*queue_chars.length, queue_chars_used + length ));
+            // The view may still point to the old array, which is fine.
+        }
+        if ( queue_size == queue_start.length ) {
+            // Grow the ring, unrolling it so that the head is at 0
+            int n = queue_start.length;
+            int[] starts = new int[2*n];
+            int[] lengths = new int[2*n];
+            for ( int i=0; i<n; i++ ) {
+                starts[i] = queue_start[(queue_head + i) % n];
+                lengths[i] = queue_length[(queue_head + i) % n];
+            }
+            queue_start = starts;
+            queue_length = lengths;
+            queue_head = 0;
+        }
+        System.arraycopy( a, start, queue_chars, queue_chars_used, length );
+        int tail = (queue_head + queue_size) % queue_start.length;
+        queue_start[tail] = queue_chars_used;
+        queue_length[tail] = length;
+        queue_chars_used += length;
+        queue_size++;
+    }
+
+
+    /**
+     *  Closes the reader, and returns the buffer to the pool.
+     */
+    public void close() throws IOException {
+        if ( reader != null ) {
+            reader.close();
+        }
+        if ( buf != null ) {
+            releaseBuffer( buf );
+            buf = null;
         }
     }
 
@@ -213,7 +293,7 @@ public class Tokenizer {
     /**
      *  Reads the next token. 
      */ 
-    private boolean readTokens() throws IOException {
+    boolean readTokens() throws IOException {
         if ( !started_reading ) {
             refillBuffer( 0 );
             started_reading = true;
@@ -234,7 +314,7 @@ public class Tokenizer {
                 }
                 else {
                     // Check for non-standard words
-                    token_added_to_queue = addTokensToQueue();
+                    token_added_to_queue = addTokensToQueue( buf, token_start, ptr );
                     token_start = -1;
                     ptr++;
                 }
@@ -265,69 +345,60 @@ public class Tokenizer {
 
 
     /**
-     *  Adds token to the queue
+     *  Adds the tokens in @code{a[start..end)} (a maximal sequence of
+     *  characters that can occur in a token) to the queue.
      */
-    private boolean addTokensToQueue() {
-        if ( token_start < 0 ) {
-            return false;
-        }
-        String s = new String( buf, token_start, ptr-token_start );
+    boolean addTokensToQueue( char[] a, int start, int end ) {
         if ( patterns != null ) {
-            // Now let's see if the string s matches one of the patterns 
+            // Now let's see if the string matches one of the patterns 
             // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
-                if ( m.find() ) {
-                    // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
+            candidate.set( a, start, end-start );
+            if ( patterns.find( candidate )) {
+                // The string contains a non-standard word. First check the prefix 
+                // before the matching substring, then add the non-standard word  
+                // to the token queue, then check the remainder of the string.
+                int match_start = start + patterns.start();
+                int match_end = start + patterns.end();
+                addStandardTokensToQueue( a, start, match_start );
+                queueToken( a, match_start, match_end-match_start );
+                addTokensToQueue( a, match_end, end );
+                return true;
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokensToQueue( a, start, end );
     }
 
 
     /**
      *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  expression) in @code{a[start..end)} to the queue.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokensToQueue( char[] a, int start, int end ) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int token = start;
+        for ( int i=start; i<end; i++ ) {
+            if ( punctuation( a[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i > token ) {
+                    queueToken( a, token, i-token );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    queueToken( a, i, 1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                token = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( end > token ) {
+            queueToken( a, token, end-token );
             tokens_found = true;
         }   
         return tokens_found;
@@ -339,8 +410,11 @@ public class Tokenizer {
      */
     private void refillBuffer( int start ) throws IOException {
         int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read >= 0 && chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        if ( chars_read < 0 ) {
+            chars_read = 0;
+        }
+        if ( chars_read < BUFFER_LENGTH-start ) {
+            buf[start+chars_read] = 0;
         }
     }
 
@@ -0,0 +1,108 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+
+/**
+ *   Keeps the k best documents seen so far, in a min-heap of at most k
+ *   docIDs and scores, so that picking the top k of n documents takes
+ *   O(n log k) time and O(k) space.
+ *
+ *   A document ranks above another one if it has a higher score, or the
+ *   same score and a smaller docID.
+ */
+public class TopDocs {
+
+    final int k;
+
+    /** The scores of the heap, the lowest ranked document first. */
+    private final double[] scores;
+
+    private final int[] docIDs;
+
+    private int size = 0;
+
+
+    public TopDocs( int k ) {
+        this.k = k;
+        scores = new double[k];
+        docIDs = new int[k];
+    }
+
+
+    /** Returns the number of documents kept. */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     *  Returns the lowest score in the top k, or negative infinity if fewer
+     *  than k documents have been seen: a document needs more than this
+     *  score to get in.
+     */
+    public double threshold() {
+        return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+
+    /** Puts a document in the top k, if it ranks above the lowest one there. */
+    public void offer( int docID, double score ) {
+        int i;
+        if ( size < k ) {
+            // Sift up from the new leaf
+            i = size++;
+            while ( i > 0 && below( score, docID, scores[(i-1)/2], docIDs[(i-1)/2] )) {
+                scores[i] = scores[(i-1)/2];
+                docIDs[i] = docIDs[(i-1)/2];
+                i = (i - 1) / 2;
+            }
+        } else if ( k > 0 && below( scores[0], docIDs[0], score, docID )) {
+            // Sift down from the root, which is replaced
+            i = 0;
+            for ( int c = 1; c < size; c = 2*i + 1 ) {
+                if ( c + 1 < size && below( scores[c+1], docIDs[c+1], scores[c], docIDs[c] )) {
+                    c++;
+                }
+                if ( !below( scores[c], docIDs[c], score, docID )) {
+                    break;
+                }
+                scores[i] = scores[c];
+                docIDs[i] = docIDs[c];
+                i = c;
+            }
+        } else {
+            return;
+        }
+        scores[i] = score;
+        docIDs[i] = docID;
+    }
+
+
+    /** True if a document ranks below another one. */
+    private static boolean below( double score1, int docID1, double score2, int docID2 ) {
+        return score1 < score2 || (score1 == score2 && docID1 > docID2);
+    }
+
+
+    /**
+     *  Returns the documents as a list of new entries, the highest ranked
+     *  first.
+     */
+    public PostingsList toList() {
+        ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>( size );
+        for ( int i=0; i<size; i++ ) {
+            list.add( new PostingsEntry( docIDs[i], scores[i] ));
+        }
+        // A stable sort by score after one by docID puts equal scores in docID order
+        list.sort( ( a, b ) -> Integer.compare( a.docID, b.docID ));
+        Collections.sort( list );
+        return new PostingsList( list );
+    }
+}